@@ -0,0 +1,329 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import utils.HashAlgorithm;
+import utils.HashUtils;
+
+// benchmark runner, no dependencies like the rest of kiwi
+//
+// hashing is measured in this JVM after warmup. Every repository operation runs as its own
+// "java src.KIWI --trace=json <command>" process in a generated tree, the way users run it;
+// the trace supplies the time inside the command (JVM startup excluded) and the per-phase split,
+// wall time is reported next to it. Setup between iterations (re-init, churn) is not timed.
+//
+// java -cp . bench.Bench [--files N] [--sizes small|mixed|large] [--seed S] [--churn FRACTION]
+//                        [--iterations N] [--warmup N] [--jobs N] [--hash-mb N]
+//                        [--object-format sha1|sha256] [--only name,...] [--dir PATH] [--out FILE]
+// --only takes result names or their prefixes: hash, add, status, index, commit, log
+public final class Bench {
+    private static final Pattern PHASE = Pattern.compile("\"([^\"]+)\":\\{\"calls\":\\d+,\"ms\":([0-9.]+)\\}");
+    private static final Pattern TOTAL = Pattern.compile("\"totalMs\":([0-9.]+)");
+
+    private final Map<String, String> options;
+    private final int iterations;
+    private final int warmup;
+    private final Path dir;
+    private final Path repo;
+    private final RepoGenerator generator;
+    private final List<String> results = new ArrayList<>();
+    private int round;
+
+    private Bench(Map<String, String> options) throws IOException {
+        this.options = options;
+        this.iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        this.dir = options.containsKey("dir") ? Paths.get(options.get("dir")) : Files.createTempDirectory("kiwi-bench");
+        this.repo = dir.resolve("repo");
+        this.generator = new RepoGenerator(repo, Integer.parseInt(options.getOrDefault("files", "1000")),
+                options.getOrDefault("sizes", "small"), Long.parseLong(options.getOrDefault("seed", "1")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(options(args, 0));
+        String json;
+        try {
+            json = bench.run();
+        } finally {
+            // a tree in a directory of the caller's choosing is kept for reruns and inspection
+            if (!bench.options.containsKey("dir")) {
+                deleteRecursively(bench.dir);
+            }
+        }
+        String out = bench.options.get("out");
+        if (out == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(Paths.get(out), json + "\n", StandardCharsets.UTF_8);
+            System.err.println("Results written to " + out);
+        }
+    }
+
+    // "--name value" and "--name=value" pairs from args[from] on
+    static Map<String, String> options(String[] args, int from) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unexpected argument " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else if (i + 1 < args.length) {
+                options.put(arg.substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+        }
+        return options;
+    }
+
+    private boolean selected(String name) {
+        String only = options.get("only");
+        if (only == null) {
+            return true;
+        }
+        for (String prefix : only.split(",")) {
+            if (name.equals(prefix) || name.startsWith(prefix + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String run() throws Exception {
+        if (selected("hash")) {
+            hashing();
+        }
+
+        log("generating " + options.getOrDefault("files", "1000") + " files in " + repo);
+        deleteRecursively(repo);
+        long bytes = generator.generate();
+        String jobs = options.getOrDefault("jobs", "1");
+        double churn = Double.parseDouble(options.getOrDefault("churn", "0.01"));
+
+        // a fresh repository per iteration, so every add writes all objects
+        if (selected("add")) {
+            measure("add.full", () -> {
+                deleteRecursively(repo.resolve(".kiwi"));
+                kiwi(false, "init");
+            }, "add", ".", "--jobs", jobs);
+        }
+        ensureStaged(jobs);
+
+        if (selected("status")) {
+            measure("status.clean", null, "status", "--jobs", jobs);
+        }
+        if (selected("index")) {
+            // one changed file: index load plus an O(changes) index write
+            String[] file = new String[1];
+            int files = Integer.parseInt(options.getOrDefault("files", "1000"));
+            measure("index.update", () -> {
+                file[0] = generator.pathOf(round++ * 7919 % files);
+                Files.writeString(repo.resolve(file[0]), "changed " + round + "\n", StandardOpenOption.APPEND);
+            }, () -> new String[]{"add", file[0]});
+        }
+        if (selected("status")) {
+            generator.churn(churn, round++);
+            measure("status.dirty", null, "status", "--jobs", jobs);
+        }
+        if (selected("commit")) {
+            kiwi(false, "add", ".", "--jobs", jobs);
+            kiwi(false, "commit", "base");
+            measure("commit", () -> {
+                generator.churn(churn, round++);
+                kiwi(false, "add", ".", "--jobs", jobs);
+            }, () -> new String[]{"commit", "bench round " + round});
+        }
+        if (selected("log")) {
+            measure("log", null, "log");
+        }
+
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"java\":\"").append(System.getProperty("java.version")).append('"');
+        json.append(",\"os\":\"").append(System.getProperty("os.name")).append(' ')
+                .append(System.getProperty("os.arch")).append('"');
+        json.append(",\"cpus\":").append(Runtime.getRuntime().availableProcessors());
+        json.append(",\"params\":{");
+        json.append("\"files\":").append(options.getOrDefault("files", "1000"));
+        json.append(",\"sizes\":\"").append(options.getOrDefault("sizes", "small")).append('"');
+        json.append(",\"seed\":").append(options.getOrDefault("seed", "1"));
+        json.append(",\"churn\":").append(churn);
+        json.append(",\"jobs\":").append(jobs);
+        json.append(",\"bytes\":").append(bytes);
+        json.append(",\"iterations\":").append(iterations);
+        json.append(",\"warmup\":").append(warmup);
+        json.append("},\"results\":[").append(String.join(",", results)).append("]}");
+        return json.toString();
+    }
+
+    // MB/s over one generated file, each algorithm after warmup passes
+    private void hashing() throws Exception {
+        int megabytes = Integer.parseInt(options.getOrDefault("hash-mb", "256"));
+        Path file = Files.createTempFile("kiwi-bench-hash", ".bin");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new SplittableRandom(1).nextBytes(block);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (int i = 0; i < megabytes; i++) {
+                    out.write(block);
+                }
+            }
+
+            for (String algorithm : new String[]{"sha1", "sha256", "xxh64"}) {
+                String name = "hash." + algorithm;
+                if (!selected(name)) {
+                    continue;
+                }
+                log(name);
+                HashAlgorithm digest = HashAlgorithm.forName(algorithm);
+                if (digest != null) {
+                    HashUtils.use(digest);
+                }
+                double[] speeds = new double[iterations];
+                for (int i = -warmup; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    if (digest != null) {
+                        HashUtils.getFileHash(file.toFile());
+                    } else {
+                        HashUtils.getFastHash(file.toFile());
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (i >= 0) {
+                        speeds[i] = megabytes / seconds;
+                    }
+                }
+                results.add("{\"name\":\"" + name + "\",\"unit\":\"MB/s\"," + stats(speeds) + "}");
+            }
+            HashUtils.use(HashAlgorithm.SHA1);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private interface Setup {
+        void run() throws Exception;
+    }
+
+    private interface Command {
+        String[] args();
+    }
+
+    private void measure(String name, Setup setup, String... args) throws Exception {
+        measure(name, setup, () -> args);
+    }
+
+    private void measure(String name, Setup setup, Command command) throws Exception {
+        log(name);
+        double[] inside = new double[iterations];
+        double[] wall = new double[iterations];
+        Map<String, double[]> phases = new TreeMap<>();
+        for (int i = -warmup; i < iterations; i++) {
+            if (setup != null) {
+                setup.run();
+            }
+            long start = System.nanoTime();
+            String trace = kiwi(true, command.args());
+            double wallMs = (System.nanoTime() - start) / 1e6;
+            if (i < 0) {
+                continue;
+            }
+            wall[i] = wallMs;
+            Matcher total = TOTAL.matcher(trace);
+            inside[i] = total.find() ? Double.parseDouble(total.group(1)) : wallMs;
+            Matcher phase = PHASE.matcher(trace);
+            while (phase.find()) {
+                phases.computeIfAbsent(phase.group(1), k -> new double[iterations])[i] = Double.parseDouble(phase.group(2));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{\"name\":\"" + name + "\",\"unit\":\"ms\",");
+        sb.append(stats(inside)).append(",\"wall\":{").append(stats(wall)).append("},\"phases\":{");
+        int n = 0;
+        for (Map.Entry<String, double[]> phase : phases.entrySet()) {
+            sb.append(n++ == 0 ? "" : ",").append('"').append(phase.getKey()).append("\":")
+                    .append(round(mean(phase.getValue())));
+        }
+        results.add(sb.append("}}").toString());
+    }
+
+    private static String stats(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double mean = mean(values);
+        double variance = 0;
+        for (double value : values) {
+            variance += (value - mean) * (value - mean);
+        }
+        double stddev = values.length > 1 ? Math.sqrt(variance / (values.length - 1)) : 0;
+        return "\"mean\":" + round(mean)
+                + ",\"min\":" + round(sorted[0])
+                + ",\"p50\":" + round(sorted[sorted.length / 2])
+                + ",\"max\":" + round(sorted[sorted.length - 1])
+                + ",\"stddev\":" + round(stddev);
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    private void ensureStaged(String jobs) throws Exception {
+        if (!Files.exists(repo.resolve(".kiwi"))) {
+            kiwi(false, "init");
+        }
+        kiwi(false, "add", ".", "--jobs", jobs);
+    }
+
+    // runs one kiwi command in the generated tree; with trace, returns its JSON trace line
+    private String kiwi(boolean trace, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("src.KIWI");
+        if (trace) {
+            command.add("--trace=json");
+        }
+        command.addAll(Arrays.asList(args));
+        if (args[0].equals("init") && options.containsKey("object-format")) {
+            command.add("--object-format=" + options.get("object-format"));
+        }
+
+        ProcessBuilder builder = new ProcessBuilder(command).directory(repo.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        Process process = builder.start();
+        String stderr = new String(process.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+        process.waitFor();
+        if (stderr.contains("[KIWI ERROR]") || stderr.contains("[SYSTEM ERROR]")) {
+            throw new IOException("kiwi " + String.join(" ", args) + " failed: " + stderr.trim());
+        }
+        return stderr;
+    }
+
+    private static void log(String message) {
+        System.err.println("[bench] " + message);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
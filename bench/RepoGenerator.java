@@ -0,0 +1,149 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// reproducible working trees for the benchmarks: the same seed, file count and size
+// distribution always give byte-identical files, and churn rounds change the same files the
+// same way, so numbers from different releases are comparable
+//
+// layout: 32 files per directory, directories nested 64 wide, text content of random lines
+// sizes: "small"  log-normal around 1.5KB (source code)
+//        "mixed"  mostly small, 5% around 64KB, 0.1% around 2MB (assets)
+//        "large"  log-normal around 256KB
+public final class RepoGenerator {
+    private static final int FILES_PER_DIR = 32;
+    private static final int DIRS_PER_DIR = 64;
+
+    private final Path root;
+    private final int files;
+    private final String sizes;
+    private final long seed;
+
+    public RepoGenerator(Path root, int files, String sizes, long seed) {
+        if (!sizes.equals("small") && !sizes.equals("mixed") && !sizes.equals("large")) {
+            throw new IllegalArgumentException("unknown size distribution " + sizes + ", expected small, mixed or large");
+        }
+        this.root = root;
+        this.files = files;
+        this.sizes = sizes;
+        this.seed = seed;
+    }
+
+    // writes every file, returns the total bytes
+    public long generate() throws IOException {
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            total += write(pathOf(i), new SplittableRandom(seed * 31 + i));
+        }
+        return total;
+    }
+
+    // round r of churn: about fraction of the files get new content, a tenth of that many are
+    // deleted and as many new files appear; returns the paths touched
+    public List<String> churn(double fraction, int round) throws IOException {
+        List<String> touched = new ArrayList<>();
+        SplittableRandom pick = new SplittableRandom(seed ^ (0x9E3779B97F4A7C15L * (round + 1)));
+        for (int i = 0; i < files; i++) {
+            double roll = pick.nextDouble();
+            Path path = root.resolve(pathOf(i));
+            if (!Files.exists(path)) {
+                continue;
+            }
+            if (roll < fraction / 10) {
+                Files.delete(path);
+                touched.add(pathOf(i));
+            } else if (roll < fraction) {
+                write(pathOf(i), new SplittableRandom(pick.nextLong()));
+                touched.add(pathOf(i));
+            }
+        }
+        int added = (int) Math.round(files * fraction / 10);
+        for (int k = 0; k < added; k++) {
+            String path = dirOf(pick.nextInt(Math.max(1, (files + FILES_PER_DIR - 1) / FILES_PER_DIR)))
+                    + "new-" + round + "-" + k + ".txt";
+            write(path, new SplittableRandom(pick.nextLong()));
+            touched.add(path);
+        }
+        return touched;
+    }
+
+    String pathOf(int i) {
+        return dirOf(i / FILES_PER_DIR) + "f" + i + ".txt";
+    }
+
+    // directory d as nested two-digit components, as deep as the file count needs
+    private String dirOf(int d) {
+        int dirs = Math.max(1, (files + FILES_PER_DIR - 1) / FILES_PER_DIR);
+        int depth = 1;
+        for (long capacity = DIRS_PER_DIR; capacity < dirs; capacity *= DIRS_PER_DIR) {
+            depth++;
+        }
+        StringBuilder sb = new StringBuilder();
+        int[] digits = new int[depth];
+        for (int level = depth - 1; level >= 0; level--) {
+            digits[level] = d % DIRS_PER_DIR;
+            d /= DIRS_PER_DIR;
+        }
+        for (int digit : digits) {
+            sb.append('d').append(digit).append('/');
+        }
+        return sb.toString();
+    }
+
+    private long write(String relative, SplittableRandom random) throws IOException {
+        byte[] content = new byte[size(random)];
+        int column = 0;
+        int lineLength = 10 + random.nextInt(70);
+        for (int i = 0; i < content.length; i++) {
+            if (column == lineLength) {
+                content[i] = '\n';
+                column = 0;
+                lineLength = 10 + random.nextInt(70);
+            } else {
+                content[i] = (byte) (random.nextInt(8) == 0 ? ' ' : 'a' + random.nextInt(26));
+                column++;
+            }
+        }
+        Path path = root.resolve(relative);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        return content.length;
+    }
+
+    private int size(SplittableRandom random) {
+        double median;
+        double roll = random.nextDouble();
+        switch (sizes) {
+            case "large" -> median = 256 * 1024;
+            case "mixed" -> median = roll < 0.001 ? 2 * 1024 * 1024 : roll < 0.05 ? 64 * 1024 : 1536;
+            default -> median = 1536;
+        }
+        // log-normal with sigma 1: e^(N(0,1)) scales the median
+        double gaussian = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+        return (int) Math.min(64L * 1024 * 1024, Math.max(1, Math.round(median * Math.exp(gaussian))));
+    }
+
+    // java bench.RepoGenerator <dir> [--files N] [--sizes small|mixed|large] [--seed S]
+    //                                [--churn FRACTION --round R]
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: java bench.RepoGenerator <dir> [--files N] [--sizes small|mixed|large] "
+                    + "[--seed S] [--churn FRACTION --round R]");
+            return;
+        }
+        Map<String, String> options = Bench.options(args, 1);
+        RepoGenerator generator = new RepoGenerator(Paths.get(args[0]),
+                Integer.parseInt(options.getOrDefault("files", "1000")),
+                options.getOrDefault("sizes", "small"),
+                Long.parseLong(options.getOrDefault("seed", "1")));
+        if (options.containsKey("churn")) {
+            List<String> touched = generator.churn(Double.parseDouble(options.get("churn")),
+                    Integer.parseInt(options.getOrDefault("round", "0")));
+            System.out.println("Churned " + touched.size() + " files.");
+        } else {
+            System.out.println("Generated " + generator.generate() + " bytes.");
+        }
+    }
+}
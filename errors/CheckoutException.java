@@ -0,0 +1,7 @@
+package errors;
+
+public class CheckoutException extends KiwiException {
+    public CheckoutException(String details) {
+        super("Checkout failed: " + details);
+    }
+}
@@ -0,0 +1,8 @@
+package errors;
+
+public class IndexLockedException extends KiwiException {
+    public IndexLockedException(String lockFile) {
+        super("Another kiwi process is writing the index (" + lockFile + " exists). "
+                + "If none is running, remove that file and try again.");
+    }
+}
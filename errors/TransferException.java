@@ -0,0 +1,7 @@
+package errors;
+
+public class TransferException extends KiwiException {
+    public TransferException(String details) {
+        super("Transfer failed: " + details);
+    }
+}
@@ -0,0 +1,356 @@
+package src;
+
+import errors.KiwiException;
+import errors.TransferException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.*;
+import utils.HashAlgorithm;
+import utils.HashUtils;
+
+// "kiwi bundle", "kiwi push" and "kiwi pull": history moved between repositories as one
+// compressed file holding only what the receiving side lacks
+//
+// bundle: "KBDL" int version int hashLength, int count and raw hashes of the commits the
+// receiver must already have, raw head hash, then one deflate stream of records
+//   byte type, raw hash, int length, content
+// where type is an object kind (BLOB, TREE, CHUNKED) or COMMIT and a 0 byte ends the stream.
+// Objects come before the trees and commits that point at them and commits come parents
+// first, so applying a cut-off bundle never leaves a reference to something missing.
+//
+// push and pull look the other repository's commits and objects up on disk; "bundle create"
+// assumes the receiver has the given basis commits and everything they reference. A tree the
+// receiver already has is taken to be complete and is not walked, so only the parts of each
+// snapshot that changed are read.
+class Bundle {
+    static final char COMMIT = 'C';
+
+    private static final byte[] MAGIC = {'K', 'B', 'D', 'L'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // a repository by its directory; kiwi's own paths are relative to the current directory,
+    // this reaches the other side of a push or pull as well
+    static final class Repo {
+        final File kiwi;
+        final File commits;
+        final ObjectStore store;
+
+        private Repo(File root, ObjectStore store) {
+            this.kiwi = new File(root, ".kiwi");
+            this.commits = new File(kiwi, "commits");
+            this.store = store;
+        }
+
+        static Repo local() {
+            return new Repo(new File("."), ObjectStore.local());
+        }
+
+        static Repo open(String path) throws KiwiException, IOException {
+            File root = new File(path);
+            File kiwi = new File(root, ".kiwi");
+            if (!kiwi.isDirectory()) {
+                throw new TransferException(path + " is not a kiwi repository.");
+            }
+            if (kiwi.getCanonicalFile().equals(new File(".kiwi").getCanonicalFile())) {
+                throw new TransferException(path + " is this repository.");
+            }
+            File[] legacy = new File(kiwi, "commits").listFiles(File::isDirectory);
+            if (legacy != null && legacy.length > 0) {
+                throw new TransferException(path + " still has old commit snapshots, run 'kiwi log' there first.");
+            }
+            HashAlgorithm format = HashAlgorithm.forName(Config.read(new File(kiwi, "config"))
+                    .getOrDefault("objectformat", HashAlgorithm.SHA1.configName));
+            if (format != HashUtils.algorithm()) {
+                throw new TransferException(path + " uses a different object format.");
+            }
+            return new Repo(root, ObjectStore.open(new File(kiwi, "objects")));
+        }
+
+        String head() throws IOException {
+            File head = new File(kiwi, "HEAD");
+            if (!head.exists()) {
+                return null;
+            }
+            String hash = Files.readString(head.toPath()).trim();
+            return hash.isEmpty() ? null : hash;
+        }
+
+        void writeHead(String hash) throws IOException {
+            Files.writeString(new File(kiwi, "HEAD").toPath(), hash + "\n");
+        }
+
+        boolean hasCommit(String hash) {
+            return new File(commits, hash).isFile();
+        }
+
+        byte[] commitBytes(String hash) throws IOException {
+            File file = new File(commits, hash);
+            if (!file.isFile()) {
+                throw new FileNotFoundException("no such commit " + hash);
+            }
+            return Files.readAllBytes(file.toPath());
+        }
+
+        CommitObject commit(String hash) throws IOException {
+            return CommitObject.parse(new String(commitBytes(hash), StandardCharsets.UTF_8));
+        }
+
+        // files have been staged here, so its HEAD goes with a working tree
+        boolean hasWorkingTree() {
+            File index = new File(kiwi, "index");
+            return new File(index, "stage.index").exists() || new File(index, "stage.journal").exists();
+        }
+
+        // true when ancestor is head or reached from it through parents; no ancestor counts too
+        boolean isAncestor(String ancestor, String head) throws IOException {
+            for (String hash = head; ancestor != null; hash = commit(hash).parent) {
+                if (hash == null || !hasCommit(hash)) {
+                    return false;
+                }
+                if (hash.equals(ancestor)) {
+                    return true;
+                }
+            }
+            return true;
+        }
+    }
+
+    // what the receiving side already has
+    interface Have {
+        boolean commit(String hash) throws IOException;
+
+        boolean object(String hash) throws IOException;
+    }
+
+    // the other repository of a push or pull, asked directly
+    static Have of(Repo repo) {
+        return new Have() {
+            @Override
+            public boolean commit(String hash) {
+                return repo.hasCommit(hash);
+            }
+
+            @Override
+            public boolean object(String hash) {
+                return repo.store.contains(hash);
+            }
+        };
+    }
+
+    // a receiver known to have the basis commits, their ancestors and everything they reference
+    static Have basis(Repo source, Collection<String> commits) throws IOException {
+        Set<String> haveCommits = new HashSet<>();
+        Set<String> haveObjects = new HashSet<>();
+        for (String commit : commits) {
+            for (String hash = commit; hash != null && haveCommits.add(hash); ) {
+                CommitObject object = source.commit(hash);
+                reachable(source.store, object.tree, haveObjects);
+                hash = object.parent;
+            }
+        }
+        return new Have() {
+            @Override
+            public boolean commit(String hash) {
+                return haveCommits.contains(hash);
+            }
+
+            @Override
+            public boolean object(String hash) {
+                return haveObjects.contains(hash);
+            }
+        };
+    }
+
+    private static void reachable(ObjectStore store, String hash, Set<String> out) throws IOException {
+        if (!out.add(hash)) {
+            return;
+        }
+        char kind = store.kind(hash);
+        if (kind == ObjectStore.TREE) {
+            for (Tree.Entry entry : Tree.parse(store.readRaw(hash))) {
+                reachable(store, entry.hash, out);
+            }
+        } else if (kind == ObjectStore.CHUNKED) {
+            out.addAll(ObjectStore.chunks(store.readRaw(hash)));
+        }
+    }
+
+    static final class Stats {
+        String head;
+        final List<String> commits = new ArrayList<>(); // parents first
+        int objects;
+        long bytes; // size of the bundle file
+    }
+
+    // writes into file what the receiver lacks of source's history up to head; stats.commits
+    // is empty when the receiver has head already
+    static Stats create(Repo source, String head, Have have, Path file) throws IOException {
+        Stats stats = new Stats();
+        stats.head = head;
+        List<String> prerequisites = new ArrayList<>();
+        Map<String, CommitObject> missing = new LinkedHashMap<>(); // newest first
+        for (String hash = head; hash != null; ) {
+            if (have.commit(hash)) {
+                prerequisites.add(hash);
+                break;
+            }
+            CommitObject commit = source.commit(hash);
+            missing.put(hash, commit);
+            hash = commit.parent;
+        }
+        List<String> order = new ArrayList<>(missing.keySet());
+        Collections.reverse(order);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(HashUtils.algorithm().length);
+            out.writeInt(prerequisites.size());
+            for (String hash : prerequisites) {
+                out.write(HashUtils.fromHex(hash));
+            }
+            out.write(HashUtils.fromHex(head));
+
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                DataOutputStream body = new DataOutputStream(deflated);
+                Set<String> sent = new HashSet<>();
+                for (String hash : order) {
+                    stats.objects += send(source.store, missing.get(hash).tree, have, sent, body);
+                    record(body, COMMIT, hash, source.commitBytes(hash));
+                    stats.commits.add(hash);
+                }
+                body.writeByte(0);
+                body.flush();
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        }
+        stats.bytes = Files.size(file);
+        return stats;
+    }
+
+    // the object and whatever it points at that the receiver lacks, children first
+    private static int send(ObjectStore store, String hash, Have have, Set<String> sent, DataOutputStream out)
+            throws IOException {
+        if (!sent.add(hash) || have.object(hash)) {
+            return 0;
+        }
+        int count = 1;
+        char kind = store.kind(hash);
+        byte[] content = store.readRaw(hash);
+        if (kind == ObjectStore.TREE) {
+            for (Tree.Entry entry : Tree.parse(content)) {
+                count += send(store, entry.hash, have, sent, out);
+            }
+        } else if (kind == ObjectStore.CHUNKED) {
+            for (String chunk : ObjectStore.chunks(content)) {
+                count += send(store, chunk, have, sent, out);
+            }
+        }
+        record(out, kind, hash, content);
+        return count;
+    }
+
+    private static void record(DataOutputStream out, char type, String hash, byte[] content) throws IOException {
+        out.writeByte(type);
+        out.write(HashUtils.fromHex(hash));
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    // stores the bundle's objects and commits in target, each checked against its hash; HEAD is
+    // left alone, the caller decides whether it may move
+    static Stats apply(Repo target, Path file) throws IOException, KiwiException, NoSuchAlgorithmException {
+        Stats stats = new Stats();
+        stats.bytes = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw new TransferException(file + " is not a kiwi bundle.");
+            }
+            int hashLength = in.readInt();
+            if (hashLength != HashUtils.algorithm().length) {
+                throw new TransferException(file + " was made by a repository with a different object format.");
+            }
+            byte[] raw = new byte[hashLength];
+            int prerequisites = in.readInt();
+            for (int i = 0; i < prerequisites; i++) {
+                in.readFully(raw);
+                String hash = HashUtils.toHex(raw);
+                if (!target.hasCommit(hash)) {
+                    throw new TransferException("the bundle builds on commit " + hash.substring(0, 7)
+                            + ", which this repository does not have.");
+                }
+            }
+            in.readFully(raw);
+            stats.head = HashUtils.toHex(raw);
+
+            Inflater inflater = new Inflater();
+            try {
+                DataInputStream body = new DataInputStream(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+                for (int type; (type = body.readUnsignedByte()) != 0; ) {
+                    body.readFully(raw);
+                    String hash = HashUtils.toHex(raw);
+                    byte[] content = new byte[body.readInt()];
+                    body.readFully(content);
+                    if (type == COMMIT) {
+                        storeCommit(target, hash, content);
+                        stats.commits.add(hash);
+                    } else if (type == ObjectStore.CHUNKED) {
+                        target.store.writeChunkList(hash, content);
+                        stats.objects++;
+                    } else if (type == ObjectStore.BLOB || type == ObjectStore.TREE) {
+                        if (!target.store.writeBytes((char) type, content).equals(hash)) {
+                            throw new IOException("object " + hash + " does not match its content");
+                        }
+                        stats.objects++;
+                    } else {
+                        throw new IOException("unknown record type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                throw new TransferException(file + " is truncated; everything before the cut was kept.");
+            } finally {
+                inflater.end();
+            }
+        }
+        if (!target.hasCommit(stats.head)) {
+            throw new TransferException("the bundle's head " + stats.head.substring(0, 7) + " is not in it.");
+        }
+        return stats;
+    }
+
+    private static void storeCommit(Repo target, String hash, byte[] content) throws IOException,
+            NoSuchAlgorithmException {
+        if (!HashUtils.toHex(HashUtils.newDigest().digest(content)).equals(hash)) {
+            throw new IOException("commit " + hash + " does not match its content");
+        }
+        CommitObject commit = CommitObject.parse(new String(content, StandardCharsets.UTF_8));
+        if (!target.store.contains(commit.tree) || (commit.parent != null && !target.hasCommit(commit.parent))) {
+            throw new IOException("commit " + hash + " arrived before what it points at");
+        }
+        File file = new File(target.commits, hash);
+        if (file.isFile()) {
+            return;
+        }
+        Path tmp = ObjectStore.newTempFile(target.kiwi.toPath());
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // the same commit arrived from somewhere else
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
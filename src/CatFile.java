@@ -0,0 +1,216 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import utils.Trace;
+
+// "kiwi cat-file --batch" and "--batch-check": object ids on stdin, one per line, answered on
+// stdout in order with "<hash> <type> <size>\n", followed for --batch by the content and "\n";
+// an id that is not in the store gets "<id> missing\n". Types are blob, tree and commit, a
+// chunked file reads as one blob.
+//
+// one process serves the whole stream. Loose objects are inflated with one Inflater into buffers
+// reused across objects; commits and objects stored before compression existed are already the
+// raw content and go from their file to stdout with transferTo. Output is flushed whenever stdin
+// has nothing more waiting, so a caller may also send one id at a time and wait for its reply.
+class CatFile {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ObjectStore store = ObjectStore.local();
+    private final boolean contents;
+    private final FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+    private final BufferedOutputStream out = new BufferedOutputStream(stdout, BUFFER_SIZE);
+    private final Inflater inflater = new Inflater();
+    private byte[] stored = new byte[BUFFER_SIZE]; // a loose object's file
+    private byte[] content = new byte[BUFFER_SIZE]; // its inflated content
+    private int length;
+
+    private CatFile(boolean contents) {
+        this.contents = contents;
+    }
+
+    static void run(InputStream in, boolean contents) throws IOException {
+        CatFile catFile = new CatFile(contents);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String id = line.trim();
+                if (!id.isEmpty()) {
+                    catFile.write(id);
+                    Trace.count(Trace.OBJECTS_READ, 1);
+                }
+                if (!reader.ready()) {
+                    catFile.out.flush();
+                }
+            }
+        } finally {
+            catFile.out.flush();
+            catFile.inflater.end();
+        }
+    }
+
+    private void write(String id) throws IOException {
+        if (!ObjectStore.isHash(id)) {
+            missing(id);
+            return;
+        }
+
+        char kind;
+        try {
+            kind = loadLoose(id);
+        } catch (NoSuchFileException e) {
+            kind = loadPacked(id);
+        }
+        if (kind == 0) {
+            File commit = new File(CommitObject.COMMITS_DIR, id);
+            if (commit.isFile()) {
+                transfer(id, "commit", commit);
+            } else {
+                missing(id);
+            }
+        } else if (kind == ObjectStore.CHUNKED) {
+            writeChunked(id);
+        } else if (length < 0) {
+            transfer(id, "blob", store.fileFor(id));
+        } else {
+            header(id, kind == ObjectStore.TREE ? "tree" : "blob", length);
+            if (contents) {
+                out.write(content, 0, length);
+                out.write('\n');
+            }
+        }
+    }
+
+    // reads a loose object into content and returns its kind; length is -1 for an object
+    // without a header, whose file is the content itself and is not read here
+    private char loadLoose(String hash) throws IOException {
+        int size;
+        try (FileChannel channel = FileChannel.open(store.fileFor(hash).toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE - 8) {
+                throw new IOException("object " + hash + " is too large");
+            }
+            size = (int) channel.size();
+            if (stored.length < size) {
+                stored = new byte[Math.max(size, stored.length * 2)];
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(stored, 0, Math.min(size, ObjectStore.HEADER_LENGTH));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            if (buffer.position() < ObjectStore.HEADER_LENGTH || !ObjectStore.hasHeader(stored)) {
+                length = -1;
+                return ObjectStore.BLOB;
+            }
+            buffer.limit(size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            size = buffer.position();
+        }
+
+        inflater.reset();
+        inflater.setInput(stored, ObjectStore.HEADER_LENGTH, size - ObjectStore.HEADER_LENGTH);
+        length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == content.length) {
+                    content = Arrays.copyOf(content, content.length * 2);
+                }
+                int n = inflater.inflate(content, length, content.length - length);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("corrupt object " + hash);
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt object " + hash + ": " + e.getMessage());
+        }
+        return (char) stored[ObjectStore.HEADER_LENGTH - 1];
+    }
+
+    // packed objects come out of the pack whole; 0 when no pack has the object either
+    private char loadPacked(String hash) throws IOException {
+        char kind;
+        try {
+            kind = store.kind(hash);
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        byte[] raw = store.readRaw(hash);
+        if (raw.length > content.length) {
+            content = raw;
+        } else {
+            System.arraycopy(raw, 0, content, 0, raw.length);
+        }
+        length = raw.length;
+        return kind;
+    }
+
+    // the size is the sum of the chunk lengths, then each chunk is loaded and written in turn
+    private void writeChunked(String hash) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        long size = 0;
+        for (String line : new String(content, 0, length, StandardCharsets.UTF_8).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                chunks.add(line.substring(0, space));
+                size += Long.parseLong(line.substring(space + 1).trim());
+            }
+        }
+        header(hash, "blob", size);
+        if (!contents) {
+            return;
+        }
+        for (String chunk : chunks) {
+            char kind;
+            try {
+                kind = loadLoose(chunk);
+            } catch (NoSuchFileException e) {
+                kind = loadPacked(chunk);
+            }
+            if (kind == 0) {
+                throw new FileNotFoundException("object " + hash + " is missing chunk " + chunk);
+            }
+            if (length < 0) {
+                copy(store.fileFor(chunk));
+            } else {
+                out.write(content, 0, length);
+            }
+        }
+        out.write('\n');
+    }
+
+    // a file that already is the content: whatever is buffered goes first, then the kernel copies
+    private void transfer(String hash, String type, File file) throws IOException {
+        header(hash, type, file.length());
+        if (contents) {
+            copy(file);
+            out.write('\n');
+        }
+    }
+
+    private void copy(File file) throws IOException {
+        out.flush();
+        WritableByteChannel target = stdout.getChannel();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; ) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    private void header(String hash, String type, long size) throws IOException {
+        out.write((hash + " " + type + " " + size + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void missing(String id) throws IOException {
+        out.write((id + " missing\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
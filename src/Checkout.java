@@ -0,0 +1,192 @@
+package src;
+
+import errors.CheckoutException;
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import utils.FileStat;
+import utils.HashUtils;
+import utils.Jobs;
+
+// "kiwi checkout" and "kiwi restore": brings working files in line with a snapshot, writing only
+// the paths whose hash differs and replacing each file with an atomic rename
+class Checkout {
+    static final class Stats {
+        int written;
+        int removed;
+    }
+
+    private final Index index;
+    private final int jobs;
+    private final Map<String, String> writes = new TreeMap<>(); // path -> blob hash
+    private final List<String> removals = new ArrayList<>();
+    private final List<String> conflicts = new ArrayList<>();
+
+    private Checkout(Index index, int jobs) {
+        this.index = index;
+        this.jobs = jobs;
+    }
+
+    // moves the index and working tree from headTree to targetTree; only paths that differ
+    // between the two trees are looked at, everything else (local edits included) carries over
+    static Stats commit(Index index, String headTree, String targetTree, boolean force, int jobs)
+            throws CheckoutException {
+        Checkout checkout = new Checkout(index, jobs);
+        try {
+            for (Map.Entry<String, String[]> change : Tree.changes(headTree, targetTree).entrySet()) {
+                String path = change.getKey();
+                String before = change.getValue()[0];
+                String after = change.getValue()[1];
+                IndexEntry entry = index.get(path);
+                String staged = entry == null ? null : entry.hash;
+
+                // a staged or unstaged edit to a path the target changes would be lost
+                boolean staging = !Objects.equals(staged, before) && !Objects.equals(staged, after);
+                if (!force && (staging || checkout.isModified(path, after))) {
+                    checkout.conflicts.add(path);
+                } else if (after == null) {
+                    checkout.removals.add(path);
+                } else if (!after.equals(staged) || !checkout.isClean(path)) {
+                    checkout.writes.put(path, after);
+                }
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new CheckoutException(e.getMessage());
+        }
+        return checkout.apply(true);
+    }
+
+    // rewrites working files under paths from the index, or from sourceTree when given;
+    // files that already match are left alone, local edits to the others are discarded
+    static Stats restore(Index index, String sourceTree, List<String> paths, int jobs) throws CheckoutException {
+        Checkout checkout = new Checkout(index, jobs);
+        if (sourceTree == null) {
+            for (IndexEntry entry : index.entries()) {
+                if (Helper.isUnder(entry.path, paths) && !checkout.isClean(entry.path)) {
+                    checkout.writes.put(entry.path, entry.hash);
+                }
+            }
+            return checkout.apply(true);
+        }
+
+        try {
+            // only the trees along each path are read, and below it only the requested directory
+            Map<String, String> source = new TreeMap<>();
+            for (String path : paths) {
+                String hash = path.isEmpty() ? sourceTree : Tree.lookup(sourceTree, path);
+                if (hash == null) {
+                    continue;
+                }
+                if (ObjectStore.local().kind(hash) != ObjectStore.TREE) {
+                    source.put(path, hash);
+                    continue;
+                }
+                String prefix = path.isEmpty() ? "" : path + "/";
+                for (Map.Entry<String, String[]> file : Tree.changes(null, hash).entrySet()) {
+                    source.put(prefix + file.getKey(), file.getValue()[1]);
+                }
+            }
+            for (Map.Entry<String, String> file : source.entrySet()) {
+                IndexEntry entry = index.get(file.getKey());
+                if (entry == null || !entry.hash.equals(file.getValue()) || !checkout.isClean(file.getKey())) {
+                    checkout.writes.put(file.getKey(), file.getValue());
+                }
+            }
+            for (IndexEntry entry : index.entries()) {
+                if (Helper.isUnder(entry.path, paths) && !source.containsKey(entry.path)
+                        && new File(entry.path).exists()) {
+                    checkout.removals.add(entry.path);
+                }
+            }
+        } catch (IOException e) {
+            throw new CheckoutException(e.getMessage());
+        }
+        // the index keeps describing what is staged, only the working tree changes
+        return checkout.apply(false);
+    }
+
+    // working file exists and matches its index entry; refreshes the stat cache on the way
+    private boolean isClean(String path) {
+        if (!new File(path).isFile()) {
+            return false;
+        }
+        Helper.FileStatus result = Helper.checkFile(index, path);
+        if (result.state.equals("refreshed")) {
+            index.refresh(index.get(path), result.stat);
+            return true;
+        }
+        return result.state.equals("clean");
+    }
+
+    // a file that checkout would overwrite or delete holds content that only exists on disk
+    private boolean isModified(String path, String target) throws IOException, NoSuchAlgorithmException {
+        File file = new File(path);
+        if (!file.exists()) {
+            return false;
+        }
+        if (index.get(path) != null && isClean(path)) {
+            return false;
+        }
+        // an untracked or edited file that already has the target content is fine to keep
+        return target == null || file.isDirectory() || !target.equals(HashUtils.getFileHash(file));
+    }
+
+    private Stats apply(boolean updateIndex) throws CheckoutException {
+        if (!conflicts.isEmpty()) {
+            StringBuilder sb = new StringBuilder("local changes would be overwritten:");
+            for (String path : conflicts) {
+                sb.append("\n   ").append(path);
+            }
+            sb.append("\nCommit them, restore them, or use --force.");
+            throw new CheckoutException(sb.toString());
+        }
+
+        Stats stats = new Stats();
+        try {
+            // removals first, a deleted file may be making room for a directory of the same name
+            for (String path : removals) {
+                File file = new File(path);
+                if (file.isFile() && file.delete()) {
+                    stats.removed++;
+                }
+                for (File dir = file.getParentFile(); dir != null && dir.delete(); dir = dir.getParentFile()) {
+                    // prune directories the removal left empty
+                }
+                if (updateIndex) {
+                    index.remove(path);
+                }
+            }
+
+            List<IndexEntry> written = Jobs.map(jobs, new ArrayList<>(writes.entrySet()),
+                    file -> write(file.getKey(), file.getValue()));
+            for (IndexEntry entry : written) {
+                if (updateIndex) {
+                    index.put(entry);
+                }
+                stats.written++;
+            }
+        } catch (IOException e) {
+            throw new CheckoutException(e.getMessage());
+        }
+        return stats;
+    }
+
+    // streams the blob into a hidden temp file next to the target, then renames it over
+    private static IndexEntry write(String path, String hash) throws IOException {
+        Path target = Paths.get(path);
+        Path dir = target.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = ObjectStore.newTempFile(dir, ".kiwi_tmp_");
+        try {
+            try (InputStream in = ObjectStore.local().open(hash);
+                    OutputStream out = Files.newOutputStream(tmp)) {
+                in.transferTo(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return new IndexEntry(path, hash, FileStat.of(target.toFile()));
+    }
+}
@@ -0,0 +1,408 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import utils.BloomFilter;
+import utils.HashUtils;
+
+// .kiwi/commit-graph: append-only list of fixed-width commit records, so history can be
+// walked without opening commit objects
+//
+// "KCGR" int version int hashLength, then per commit
+//   raw hash, int parent position (-1 for a root commit), int generation, long timestamp,
+//   long offset of its changed-path filter in .kiwi/commit-graph-bloom (-1 for none)
+// a record's position is its number in the file; parents always come before children
+//
+// .kiwi/commit-graph-bloom: "KBLM" int version, then per filter
+//   raw commit hash, int length, Bloom filter bytes
+// a filter holds every path the commit changed against its parent plus their directories, so
+// "log -- <path>" can pass over commits without reading their trees. Root commits and commits
+// that change more than MAX_CHANGED_PATHS paths get no filter and are always looked at.
+// The filter repeats the commit hash and is only trusted when it matches the record.
+class CommitGraph implements Closeable {
+    static final File GRAPH_FILE = new File(".kiwi/commit-graph");
+    static final File BLOOM_FILE = new File(".kiwi/commit-graph-bloom");
+    private static final File LOCAL = new File(".kiwi");
+
+    private static final byte[] MAGIC = {'K', 'C', 'G', 'R'};
+    private static final int VERSION = 2;
+    private static final int HEADER = 12;
+    private static final byte[] BLOOM_MAGIC = {'K', 'B', 'L', 'M'};
+    private static final int BLOOM_VERSION = 1;
+    private static final int BLOOM_HEADER = 8;
+    private static final int MAX_CHANGED_PATHS = 512;
+    private static final long LOCK_TIMEOUT_MILLIS = 1000;
+
+    static final class Record {
+        final int position;
+        final String hash;
+        final int parent;
+        final int generation;
+        final long timestamp;
+        final long filter;
+
+        Record(int position, String hash, int parent, int generation, long timestamp, long filter) {
+            this.position = position;
+            this.hash = hash;
+            this.parent = parent;
+            this.generation = generation;
+            this.timestamp = timestamp;
+            this.filter = filter;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int hashLength;
+    private final int recordSize;
+    private final int count;
+    private final File bloomFile;
+    private FileChannel bloom; // opened on the first filter lookup
+
+    private CommitGraph(FileChannel channel, int hashLength, File bloomFile) throws IOException {
+        this.channel = channel;
+        this.bloomFile = bloomFile;
+        this.hashLength = hashLength;
+        this.recordSize = hashLength + 4 + 4 + 8 + 8;
+        // a record cut short by a crash is ignored and overwritten by the next append
+        this.count = (int) ((channel.size() - HEADER) / recordSize);
+    }
+
+    // opens the graph, rebuilding it from .kiwi/commits when it is missing or unreadable
+    static CommitGraph open() throws IOException {
+        return open(LOCAL, ObjectStore.local());
+    }
+
+    // the graph of the repository whose .kiwi directory is kiwi, e.g. the other side of a push
+    private static CommitGraph open(File kiwi, ObjectStore store) throws IOException {
+        CommitGraph graph = tryOpen(kiwi);
+        if (graph == null) {
+            rebuild(kiwi, store);
+            graph = tryOpen(kiwi);
+        }
+        if (graph == null) {
+            throw new IOException("could not build " + graphFile(kiwi).getPath());
+        }
+        return graph;
+    }
+
+    private static File graphFile(File kiwi) {
+        return kiwi == LOCAL ? GRAPH_FILE : new File(kiwi, GRAPH_FILE.getName());
+    }
+
+    private static File bloomFile(File kiwi) {
+        return kiwi == LOCAL ? BLOOM_FILE : new File(kiwi, BLOOM_FILE.getName());
+    }
+
+    private static CommitGraph tryOpen(File kiwi) throws IOException {
+        File graphFile = graphFile(kiwi);
+        if (!graphFile.isFile() || graphFile.length() < HEADER) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        channel.read(header, 0);
+        header.flip();
+        byte[] magic = new byte[4];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+            channel.close();
+            return null;
+        }
+        return new CommitGraph(channel, header.getInt(), bloomFile(kiwi));
+    }
+
+    // writes a fresh graph and filter file covering every commit object, parents first;
+    // an older graph version is replaced this way on first use
+    static void rebuild() throws IOException {
+        rebuild(LOCAL, ObjectStore.local());
+    }
+
+    private static void rebuild(File kiwi, ObjectStore store) throws IOException {
+        File commitsDir = new File(kiwi, CommitObject.COMMITS_DIR.getName());
+        Map<String, CommitObject> commits = new HashMap<>();
+        for (String hash : CommitObject.listAll(commitsDir)) {
+            commits.put(hash, CommitObject.read(commitsDir, hash));
+        }
+
+        List<String> order = new ArrayList<>();
+        Set<String> placed = new HashSet<>();
+        for (String hash : commits.keySet()) {
+            // iterative so long histories do not blow the stack
+            Deque<String> chain = new ArrayDeque<>();
+            String current = hash;
+            while (current != null && commits.containsKey(current) && !placed.contains(current)) {
+                chain.push(current);
+                current = commits.get(current).parent;
+            }
+            while (!chain.isEmpty()) {
+                String next = chain.pop();
+                placed.add(next);
+                order.add(next);
+            }
+        }
+
+        int hashLength = order.isEmpty() ? HashUtils.algorithm().length : order.get(0).length() / 2;
+        Path dir = kiwi.toPath();
+        Path tmp = ObjectStore.newTempFile(dir);
+        Path bloomTmp = ObjectStore.newTempFile(dir);
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                    FileChannel bloomOut = FileChannel.open(bloomTmp, StandardOpenOption.WRITE)) {
+                out.write(header(hashLength));
+                bloomOut.write(bloomHeader());
+                Map<String, int[]> positions = new HashMap<>(); // hash -> {position, generation}
+                for (String hash : order) {
+                    CommitObject commit = commits.get(hash);
+                    int[] parent = commit.parent == null ? null : positions.get(commit.parent);
+                    int position = positions.size();
+                    int generation = parent == null ? 1 : parent[1] + 1;
+                    String parentTree = parent == null ? null : commits.get(commit.parent).tree;
+                    long filter = writeFilter(bloomOut, hash,
+                            changedPaths(store, parentTree, commit.tree, parent == null));
+                    out.write(record(hashLength, hash, parent == null ? -1 : parent[0], generation, commit.timestamp,
+                            filter));
+                    positions.put(hash, new int[]{position, generation});
+                }
+            }
+            // filters are checked against their commit hash, so a crash between the moves is harmless
+            Files.move(bloomTmp, bloomFile(kiwi).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp, graphFile(kiwi).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+            Files.deleteIfExists(bloomTmp);
+        }
+    }
+
+    // the filter of paths that differ between two trees, null when there is none worth keeping
+    private static BloomFilter changedPaths(ObjectStore store, String parentTree, String tree, boolean root)
+            throws IOException {
+        if (root) {
+            return null;
+        }
+        Set<String> paths = new HashSet<>();
+        for (String path : Tree.changes(store, parentTree, tree).keySet()) {
+            // directories too, so a directory can be asked about like a file
+            for (int slash = path.length(); slash > 0 && paths.add(path.substring(0, slash)); ) {
+                slash = path.lastIndexOf('/', slash - 1);
+            }
+            if (paths.size() > MAX_CHANGED_PATHS) {
+                return null;
+            }
+        }
+        BloomFilter filter = new BloomFilter(paths.size());
+        for (String path : paths) {
+            filter.add(path);
+        }
+        return filter;
+    }
+
+    // appends one filter at the end of out, returns its offset or -1 when filter is null
+    private static long writeFilter(FileChannel out, String hash, BloomFilter filter) throws IOException {
+        if (filter == null) {
+            return -1;
+        }
+        byte[] bits = filter.toBytes();
+        byte[] raw = HashUtils.fromHex(hash);
+        ByteBuffer entry = ByteBuffer.allocate(raw.length + 4 + bits.length);
+        entry.put(raw).putInt(bits.length).put(bits).flip();
+        long offset = out.size();
+        while (entry.hasRemaining()) {
+            out.write(entry, offset + entry.position());
+        }
+        return offset;
+    }
+
+    // records a new commit whose parent (if any) is already in the graph
+    static void append(String hash, CommitObject commit) throws IOException {
+        append(LOCAL, ObjectStore.local(), hash, commit);
+    }
+
+    // append() for the repository whose .kiwi directory is kiwi and whose objects are in store
+    static void append(File kiwi, ObjectStore store, String hash, CommitObject commit) throws IOException {
+        // commit-graph.lock keeps two appends from taking the same position and filter offset
+        Path lock = new File(kiwi, GRAPH_FILE.getName() + ".lock").toPath();
+        if (!lock(lock)) {
+            // the graph is only an index, a later append or log finds the commit missing and rebuilds
+            return;
+        }
+        try {
+            if (!appendRecord(kiwi, store, hash, commit)) {
+                rebuild(kiwi, store);
+            }
+        } finally {
+            Files.deleteIfExists(lock);
+        }
+    }
+
+    // false when the graph cannot take the record: the parent is not in it or it uses another hash length
+    private static boolean appendRecord(File kiwi, ObjectStore store, String hash, CommitObject commit)
+            throws IOException {
+        try (CommitGraph graph = open(kiwi, store)) {
+            Record parent = commit.parent == null ? null : graph.find(commit.parent);
+            if ((commit.parent != null && parent == null) || hash.length() / 2 != graph.hashLength) {
+                return false;
+            }
+            if (graph.find(hash) != null) {
+                return true;
+            }
+            File commitsDir = new File(kiwi, CommitObject.COMMITS_DIR.getName());
+            String parentTree = parent == null ? null : CommitObject.read(commitsDir, commit.parent).tree;
+            long filter = -1;
+            try (FileChannel bloomOut = openBloomForAppend(bloomFile(kiwi))) {
+                filter = writeFilter(bloomOut, hash, changedPaths(store, parentTree, commit.tree, parent == null));
+            }
+            ByteBuffer record = record(graph.hashLength, hash, parent == null ? -1 : parent.position,
+                    parent == null ? 1 : parent.generation + 1, commit.timestamp, filter);
+            graph.channel.write(record, HEADER + (long) graph.count * graph.recordSize);
+            graph.channel.truncate(HEADER + (long) (graph.count + 1) * graph.recordSize);
+            return true;
+        }
+    }
+
+    // false when another process holds the lock for longer than LOCK_TIMEOUT_MILLIS
+    private static boolean lock(Path lock) throws IOException {
+        long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                Files.createFile(lock);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return false;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    // the filter file, started over when it is missing or not one we can read
+    private static FileChannel openBloomForAppend(File bloomFile) throws IOException {
+        FileChannel out = FileChannel.open(bloomFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER);
+        out.read(header, 0);
+        if (!header.flip().equals(bloomHeader())) {
+            out.truncate(0);
+            out.write(bloomHeader(), 0);
+        }
+        return out;
+    }
+
+    private static ByteBuffer header(int hashLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.put(MAGIC).putInt(VERSION).putInt(hashLength);
+        return header.flip();
+    }
+
+    private static ByteBuffer bloomHeader() {
+        ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER);
+        header.put(BLOOM_MAGIC).putInt(BLOOM_VERSION);
+        return header.flip();
+    }
+
+    private static ByteBuffer record(int hashLength, String hash, int parent, int generation, long timestamp,
+            long filter) {
+        ByteBuffer record = ByteBuffer.allocate(hashLength + 24);
+        record.put(HashUtils.fromHex(hash)).putInt(parent).putInt(generation).putLong(timestamp).putLong(filter);
+        return record.flip();
+    }
+
+    int size() {
+        return count;
+    }
+
+    Record at(int position) throws IOException {
+        if (position < 0 || position >= count) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        long offset = HEADER + (long) position * recordSize;
+        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+        }
+        buffer.flip();
+        byte[] raw = new byte[hashLength];
+        buffer.get(raw);
+        return new Record(position, HashUtils.toHex(raw), buffer.getInt(), buffer.getInt(), buffer.getLong(),
+                buffer.getLong());
+    }
+
+    // false only when the record's filter proves the commit changed none of paths (or anything
+    // under them); paths are repository paths without a trailing slash
+    boolean mayHaveChanged(Record record, Collection<String> paths) throws IOException {
+        if (record.filter < 0) {
+            return true;
+        }
+        if (bloom == null) {
+            if (!bloomFile.isFile()) {
+                return true;
+            }
+            bloom = FileChannel.open(bloomFile.toPath(), StandardOpenOption.READ);
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(hashLength + 4);
+        if (!readFully(bloom, head, record.filter)) {
+            return true;
+        }
+        byte[] raw = new byte[hashLength];
+        head.get(raw);
+        int length = head.getInt();
+        if (!Arrays.equals(raw, HashUtils.fromHex(record.hash)) || length <= 0 || length > bloom.size()) {
+            return true;
+        }
+        ByteBuffer bits = ByteBuffer.allocate(length);
+        if (!readFully(bloom, bits, record.filter + hashLength + 4)) {
+            return true;
+        }
+
+        BloomFilter filter = BloomFilter.fromBytes(bits.array());
+        for (String path : paths) {
+            if (filter.mightContain(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    // newest records are the likely targets (HEAD, a fresh parent), so search backwards
+    Record find(String hash) throws IOException {
+        byte[] key = HashUtils.fromHex(hash);
+        ByteBuffer raw = ByteBuffer.allocate(hashLength);
+        for (int position = count - 1; position >= 0; position--) {
+            raw.clear();
+            long offset = HEADER + (long) position * recordSize;
+            while (raw.hasRemaining() && channel.read(raw, offset + raw.position()) >= 0) {
+            }
+            if (Arrays.equals(raw.array(), key)) {
+                return at(position);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (bloom != null) {
+            bloom.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import utils.CommitHashUtils;
+
+// immutable commit stored as .kiwi/commits/<hash>, pointing at a tree in .kiwi/objects
+class CommitObject {
+    static final File COMMITS_DIR = new File(".kiwi/commits");
+
+    final String tree;
+    final String parent; // null for the first commit
+    final String author; // null for commits made before authors were recorded
+    final long timestamp;
+    final String message;
+
+    CommitObject(String tree, String parent, String author, long timestamp, String message) {
+        this.tree = tree;
+        this.parent = parent;
+        this.author = author;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    // KIWI_AUTHOR if set, otherwise the login name
+    static String defaultAuthor() {
+        String author = System.getenv("KIWI_AUTHOR");
+        if (author == null || author.isBlank()) {
+            author = System.getProperty("user.name", "unknown");
+        }
+        return author.replace("\n", " ").trim();
+    }
+
+    String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tree ").append(tree).append("\n");
+        if (parent != null) {
+            sb.append("parent ").append(parent).append("\n");
+        }
+        if (author != null) {
+            sb.append("author ").append(author).append("\n");
+        }
+        sb.append("time ").append(timestamp).append("\n");
+        sb.append("\n").append(message).append("\n");
+        return sb.toString();
+    }
+
+    static CommitObject parse(String content) throws IOException {
+        String tree = null;
+        String parent = null;
+        String author = null;
+        long timestamp = 0;
+
+        int pos = 0;
+        while (pos < content.length()) {
+            int end = content.indexOf('\n', pos);
+            if (end < 0) {
+                end = content.length();
+            }
+            String line = content.substring(pos, end);
+            pos = end + 1;
+            if (line.isEmpty()) {
+                break;
+            }
+
+            String[] parts = line.split(" ", 2);
+            if (parts.length < 2) {
+                continue;
+            }
+            switch (parts[0]) {
+                case "tree" ->
+                    tree = parts[1].trim();
+                case "parent" ->
+                    parent = parts[1].trim();
+                case "author" ->
+                    author = parts[1].trim();
+                case "time" ->
+                    timestamp = Long.parseLong(parts[1].trim());
+                default -> {
+                }
+            }
+        }
+
+        if (tree == null) {
+            throw new IOException("commit object has no tree");
+        }
+        String message = pos < content.length() ? content.substring(pos).stripTrailing() : "";
+        return new CommitObject(tree, parent, author, timestamp, message);
+    }
+
+    String write() throws IOException, NoSuchAlgorithmException {
+        String content = format();
+        String hash = CommitHashUtils.generateCommitHash(content);
+        File commitFile = new File(COMMITS_DIR, hash);
+        if (commitFile.exists()) {
+            return hash;
+        }
+        // written aside and renamed, so a crash or a full disk never leaves a cut-off commit
+        Path tmp = ObjectStore.newTempFile(COMMITS_DIR.toPath());
+        try {
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, commitFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // the same commit was written by another process, the content is the same
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    static CommitObject read(String hash) throws IOException {
+        return read(COMMITS_DIR, hash);
+    }
+
+    // a commit in the commits directory of any repository
+    static CommitObject read(File commitsDir, String hash) throws IOException {
+        File commitFile = new File(commitsDir, hash);
+        if (!commitFile.isFile()) {
+            throw new FileNotFoundException("no such commit " + hash);
+        }
+        return parse(Files.readString(commitFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    // every commit object in .kiwi/commits, in no particular order
+    static List<String> listAll() {
+        return listAll(COMMITS_DIR);
+    }
+
+    static List<String> listAll(File commitsDir) {
+        List<String> out = new ArrayList<>();
+        File[] files = commitsDir.listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                if (ObjectStore.isHash(file.getName())) {
+                    out.add(file.getName());
+                }
+            }
+        }
+        return out;
+    }
+
+    // HEAD, HEAD~n, a full commit hash or an unambiguous prefix of at least 4 characters;
+    // null when nothing matches
+    static String resolve(String rev) throws IOException {
+        int back = 0;
+        int tilde = rev.indexOf('~');
+        if (tilde >= 0) {
+            try {
+                back = tilde == rev.length() - 1 ? 1 : Integer.parseInt(rev.substring(tilde + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            rev = rev.substring(0, tilde);
+        }
+
+        String hash = null;
+        if (rev.equals("HEAD")) {
+            hash = Helper.readHead();
+        } else if (rev.length() >= 4) {
+            for (String candidate : listAll()) {
+                if (candidate.startsWith(rev)) {
+                    if (hash != null) {
+                        return null;
+                    }
+                    hash = candidate;
+                }
+            }
+        }
+
+        for (; hash != null && back > 0; back--) {
+            hash = read(hash).parent;
+        }
+        return hash;
+    }
+}
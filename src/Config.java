@@ -0,0 +1,63 @@
+package src;
+
+import errors.KiwiException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import utils.HashAlgorithm;
+import utils.HashUtils;
+
+// .kiwi/config: "key = value" lines, '#' starts a comment
+//   objectformat  sha1 (default) or sha256, fixed when the repository is created
+//   stathash      xxh64 to also record a fast content hash per index entry, so status can
+//                 tell a touched but unchanged file without computing its object hash
+class Config {
+    static final File CONFIG_FILE = new File(".kiwi/config");
+
+    static volatile boolean fastStatHash;
+
+    // read once at startup; repositories without a config are sha1 without a stat hash
+    static void load() throws KiwiException {
+        Map<String, String> values = read(CONFIG_FILE);
+        apply(values.getOrDefault("objectformat", HashAlgorithm.SHA1.configName),
+                values.getOrDefault("stathash", "none"));
+    }
+
+    // the settings in file, which may belong to another repository; empty when there is none
+    static Map<String, String> read(File file) throws KiwiException {
+        Map<String, String> values = new HashMap<>();
+        if (file.isFile()) {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    int comment = line.indexOf('#');
+                    line = (comment < 0 ? line : line.substring(0, comment)).trim();
+                    int eq = line.indexOf('=');
+                    if (eq > 0) {
+                        values.put(line.substring(0, eq).trim().toLowerCase(), line.substring(eq + 1).trim());
+                    }
+                }
+            } catch (IOException e) {
+                throw new KiwiException("Could not read " + file.getPath() + ": " + e.getMessage(), e);
+            }
+        }
+        return values;
+    }
+
+    static void apply(String objectFormat, String statHash) throws KiwiException {
+        HashAlgorithm algorithm = HashAlgorithm.forName(objectFormat);
+        if (algorithm == null) {
+            throw new KiwiException("Unsupported objectformat '" + objectFormat + "', expected sha1 or sha256.");
+        }
+        if (!statHash.equals("none") && !statHash.equals("xxh64")) {
+            throw new KiwiException("Unsupported stathash '" + statHash + "', expected none or xxh64.");
+        }
+        HashUtils.use(algorithm);
+        fastStatHash = statHash.equals("xxh64");
+    }
+
+    static void write(String objectFormat, String statHash) throws IOException {
+        Files.writeString(CONFIG_FILE.toPath(), "objectformat = " + objectFormat + "\nstathash = " + statHash + "\n",
+                StandardCharsets.UTF_8);
+    }
+}
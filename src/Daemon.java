@@ -0,0 +1,314 @@
+package src;
+
+import errors.IndexCorruptedException;
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import utils.Colors;
+
+// long-lived "kiwi daemon": keeps the index loaded and a WatchService over the working tree,
+// so status only re-examines paths that changed since the last query
+//
+// protocol over .kiwi/daemon.sock: one line of tab-separated arguments, answered with the
+// command output; the daemon closes the connection when done
+class Daemon {
+    static final File SOCKET = new File(".kiwi/daemon.sock");
+
+    // refreshed stat data this recent could still hide a same-tick write, keep those smudged
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final WatchService watcher;
+    private final Map<WatchKey, String> keys = new HashMap<>();
+    private final Set<String> dirty = new HashSet<>();
+    private final TreeMap<String, String> changes = new TreeMap<>(Helper.WALK_ORDER); // path -> modified/untracked
+    private final TreeSet<String> deleted = new TreeSet<>();
+    private boolean rescan = true;
+    private boolean watching = true;
+    private Ignore ignore = new Ignore();
+    private Index index;
+    private String indexStamp;
+
+    private Daemon() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    // client side: hands the command to a running daemon, false when there is none
+    static boolean forward(String[] args) {
+        if (!SOCKET.exists()) {
+            return false;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()))) {
+            channel.write(StandardCharsets.UTF_8.encode(String.join("\t", args) + "\n"));
+            InputStream in = Channels.newInputStream(channel);
+            in.transferTo(System.out);
+            System.out.flush();
+            return true;
+        } catch (IOException e) {
+            return false; // stale socket, run the command in-process
+        }
+    }
+
+    static void run(String[] args) throws IOException, IndexCorruptedException {
+        if (args.length > 1 && args[1].equals("stop")) {
+            if (!forward(new String[]{"daemon-stop"})) {
+                System.out.println(Colors.YELLOW + "No daemon is running." + Colors.RESET);
+            }
+            return;
+        }
+
+        if (SOCKET.exists() && forward(new String[]{"daemon-ping"})) {
+            return;
+        }
+        Files.deleteIfExists(SOCKET.toPath());
+
+        Daemon daemon = new Daemon();
+        daemon.loadIndex();
+        daemon.register("");
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            SOCKET.deleteOnExit();
+            System.out.println(Colors.GREEN + "KIWI daemon listening on " + SOCKET.getPath() + Colors.RESET);
+
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    String[] request = readRequest(client);
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+                    boolean stop = daemon.handle(request, out);
+                    out.flush();
+                    client.write(ByteBuffer.wrap(buffer.toByteArray()));
+                    if (stop) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    System.err.println("[KIWI ERROR] daemon request failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(SOCKET.toPath());
+            daemon.watcher.close();
+        }
+    }
+
+    private static String[] readRequest(SocketChannel client) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (client.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return line.toString(StandardCharsets.UTF_8).split("\t");
+                }
+                line.write(b);
+            }
+            buffer.clear();
+        }
+        return line.toString(StandardCharsets.UTF_8).split("\t");
+    }
+
+    private boolean handle(String[] request, PrintStream out) {
+        String command = request.length == 0 ? "" : request[0];
+        switch (command) {
+            case "daemon-stop" -> {
+                out.println(Colors.GREEN + "KIWI daemon stopped." + Colors.RESET);
+                return true;
+            }
+            case "daemon-ping" ->
+                out.println(Colors.YELLOW + "KIWI daemon is already running." + Colors.RESET);
+            case "status" -> {
+                try {
+                    status(out);
+                } catch (IOException | IndexCorruptedException e) {
+                    rescan = true;
+                    out.println(Colors.RED + "[KIWI ERROR] " + e.getMessage() + Colors.RESET);
+                }
+            }
+            default ->
+                out.println(Colors.RED + "[KIWI ERROR] The daemon only serves 'status'." + Colors.RESET);
+        }
+        return false;
+    }
+
+    private void status(PrintStream out) throws IOException, IndexCorruptedException {
+        if (!Index.INDEX_FILE.exists()) {
+            out.println(Colors.RED + "No files have been staged yet!" + Colors.RESET);
+            return;
+        }
+
+        // another kiwi process wrote the index or its journal: start over from the new one
+        if (!Index.stamp().equals(indexStamp)) {
+            loadIndex();
+        }
+
+        drainEvents();
+        if (rescan || !watching) {
+            fullScan();
+        } else {
+            for (String path : dirty) {
+                recheck(path);
+            }
+        }
+        dirty.clear();
+
+        List<String> modified = new ArrayList<>();
+        List<String> untracked = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            (change.getValue().equals("modified") ? modified : untracked).add(Helper.fileName(change.getKey()));
+        }
+        List<String> deletedNames = new ArrayList<>();
+        for (String path : deleted) {
+            deletedNames.add(Helper.fileName(path));
+        }
+        VCSHANDLER.printStatus(out, deletedNames, modified, untracked);
+    }
+
+    private void loadIndex() throws IOException, IndexCorruptedException {
+        indexStamp = Index.stamp();
+        index = Index.load();
+        rescan = true;
+    }
+
+    private void fullScan() {
+        changes.clear();
+        deleted.clear();
+        for (IndexEntry entry : index.entries()) {
+            if (!new File(entry.path).exists()) {
+                deleted.add(entry.path);
+            }
+        }
+        for (String path : Helper.listWorkingFiles("", index)) {
+            recheckFile(path);
+        }
+        rescan = false;
+    }
+
+    private void recheck(String path) {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            for (String child : Helper.listWorkingFiles(path, index)) {
+                recheckFile(child);
+            }
+            return;
+        }
+
+        if (!file.exists()) {
+            // a vanished path may have been a directory, drop everything that lived under it
+            changes.remove(path);
+            changes.keySet().removeIf(p -> p.startsWith(path + "/"));
+            if (index.get(path) != null) {
+                deleted.add(path);
+            }
+            for (String tracked : index.entriesUnder(path).keySet()) {
+                if (!new File(tracked).exists()) {
+                    deleted.add(tracked);
+                }
+            }
+            return;
+        }
+        recheckFile(path);
+    }
+
+    private void recheckFile(String path) {
+        deleted.remove(path);
+        Helper.FileStatus result = Helper.checkFile(index, path);
+        switch (result.state) {
+            case "modified", "untracked" ->
+                changes.put(path, result.state);
+            case "refreshed" -> {
+                changes.remove(path);
+                if (System.currentTimeMillis() * 1_000_000L - result.stat.mtimeNanos > RACY_WINDOW_NANOS) {
+                    index.get(path).stat = result.stat;
+                }
+            }
+            default ->
+                changes.remove(path);
+        }
+    }
+
+    private void register(String dir) {
+        if (!watching) {
+            return;
+        }
+        try {
+            WatchKey key = Paths.get(dir.isEmpty() ? "." : dir).register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, dir);
+        } catch (IOException e) {
+            // e.g. out of inotify watches: answer every query with a full scan instead
+            System.err.println("[KIWI ERROR] Could not watch " + dir + ", falling back to full scans: " + e.getMessage());
+            watching = false;
+            return;
+        }
+
+        String[] names = new File(dir.isEmpty() ? "." : dir).list();
+        if (names == null) {
+            return;
+        }
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        for (String name : names) {
+            String path = prefix + name;
+            if (!name.startsWith(".") && new File(path).isDirectory()
+                    && !Helper.isExcluded(ignore, index, path, true, false)) {
+                register(path);
+            }
+        }
+    }
+
+    private void drainEvents() throws IOException {
+        WatchKey key;
+        try {
+            // give events for writes that just happened a moment to arrive
+            key = watcher.poll(5, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            key = null;
+        }
+
+        boolean rules = false;
+        while (key != null) {
+            String dir = keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan = true;
+                    continue;
+                }
+                String name = event.context().toString();
+                if (name.equals(Ignore.FILE_NAME)) {
+                    // the rules changed, everything they cover has to be looked at again
+                    ignore = new Ignore();
+                    rescan = true;
+                    rules = true;
+                    continue;
+                }
+                if (dir == null || name.startsWith(".")) {
+                    continue;
+                }
+                String path = dir.isEmpty() ? name : dir + "/" + name;
+                boolean isDir = new File(path).isDirectory();
+                if (ignore.isIgnoredPath(path, isDir) && (isDir ? index.entriesUnder(path).isEmpty() : index.get(path) == null)) {
+                    continue;
+                }
+                dirty.add(path);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isDir) {
+                    register(path);
+                }
+            }
+            if (!key.reset()) {
+                keys.remove(key);
+            }
+            key = watcher.poll();
+        }
+        if (rules) {
+            register(""); // directories the old rules hid need watches now
+        }
+    }
+}
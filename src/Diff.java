@@ -0,0 +1,155 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import utils.Colors;
+import utils.LineDiff;
+
+// "kiwi diff": the working tree against the index, or one commit against another
+//
+// files are only opened when their hashes differ; working files are memory-mapped and the old
+// side comes straight out of the object store
+class Diff {
+    // bigger objects are inflated into a temporary file and mapped instead of held on the heap
+    private static final int IN_MEMORY_LIMIT = 16 * 1024 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ObjectStore store = ObjectStore.local();
+    private final OutputStream out;
+    private final List<String> paths;
+
+    Diff(OutputStream out, List<String> paths) {
+        this.out = out;
+        this.paths = paths;
+    }
+
+    // tracked files that changed or disappeared since they were staged
+    void workingTree(Index index) throws IOException {
+        for (IndexEntry entry : index.entries()) {
+            if (!selected(entry.path)) {
+                continue;
+            }
+            File file = new File(entry.path);
+            if (!file.exists()) {
+                file(entry.path, entry.hash, null, null);
+                continue;
+            }
+
+            Helper.FileStatus result = Helper.checkFile(index, entry.path);
+            switch (result.state) {
+                case "modified" ->
+                    file(entry.path, entry.hash, null, file);
+                case "refreshed" -> {
+                    index.refresh(entry, result.stat);
+                }
+                default -> {
+                }
+            }
+        }
+        out.flush();
+    }
+
+    // identical subtrees have identical hashes and are skipped without being read
+    void commits(String oldCommit, String newCommit) throws IOException {
+        Map<String, String[]> changes = Tree.changes(CommitObject.read(oldCommit).tree, CommitObject.read(newCommit).tree);
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            if (selected(change.getKey())) {
+                file(change.getKey(), change.getValue()[0], change.getValue()[1], null);
+            }
+        }
+        out.flush();
+    }
+
+    private boolean selected(String path) {
+        return paths.isEmpty() || Helper.isUnder(path, paths);
+    }
+
+    // one file; a null hash means the file does not exist on that side
+    private void file(String path, String oldHash, String newHash, File working) {
+        List<Path> spills = new ArrayList<>();
+        try {
+            boolean added = oldHash == null;
+            boolean deleted = newHash == null && working == null;
+
+            write(Colors.BOLD + "diff --kiwi a/" + path + " b/" + path + Colors.RESET + "\n");
+            if (added) {
+                write(Colors.BOLD + "new file" + Colors.RESET + "\n");
+            } else if (deleted) {
+                write(Colors.BOLD + "deleted file" + Colors.RESET + "\n");
+            }
+
+            ByteBuffer after = working != null ? map(working.toPath()) : null;
+            // only the first few KB are needed to spot binary content
+            if ((oldHash != null && LineDiff.isBinary(peek(oldHash)))
+                    || (newHash != null && LineDiff.isBinary(peek(newHash)))
+                    || (after != null && LineDiff.isBinary(after))) {
+                write("Binary files " + (added ? "/dev/null" : "a/" + path) + " and "
+                        + (deleted ? "/dev/null" : "b/" + path) + " differ\n");
+                return;
+            }
+
+            ByteBuffer before = added ? EMPTY : load(oldHash, spills);
+            if (after == null) {
+                after = deleted ? EMPTY : load(newHash, spills);
+            }
+
+            write(Colors.BOLD + "--- " + (added ? "/dev/null" : "a/" + path) + Colors.RESET + "\n");
+            write(Colors.BOLD + "+++ " + (deleted ? "/dev/null" : "b/" + path) + Colors.RESET + "\n");
+            LineDiff.write(before, after, out);
+
+        } catch (IOException e) {
+            System.err.println("[KIWI ERROR] Could not diff " + path + ": " + e.getMessage());
+        } finally {
+            for (Path spill : spills) {
+                try {
+                    Files.deleteIfExists(spill);
+                } catch (IOException e) {
+                    spill.toFile().deleteOnExit(); // still mapped on windows
+                }
+            }
+        }
+    }
+
+    private ByteBuffer peek(String hash) throws IOException {
+        try (InputStream in = store.open(hash)) {
+            return ByteBuffer.wrap(in.readNBytes(8000));
+        }
+    }
+
+    private ByteBuffer load(String hash, List<Path> spills) throws IOException {
+        try (InputStream in = store.open(hash)) {
+            byte[] head = in.readNBytes(IN_MEMORY_LIMIT);
+            int next = in.read();
+            if (next < 0) {
+                return ByteBuffer.wrap(head);
+            }
+
+            Path spill = ObjectStore.newTempFile(store.dir.toPath());
+            spills.add(spill);
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(spill), 64 * 1024)) {
+                file.write(head);
+                file.write(next);
+                in.transferTo(file);
+            }
+            return map(spill);
+        }
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("files over 2 GB are not diffed");
+            }
+            return size == 0 ? EMPTY : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private void write(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
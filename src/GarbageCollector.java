@@ -0,0 +1,194 @@
+package src;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import utils.Jobs;
+
+// "kiwi gc": marks every object reachable from the index and from all commits, then sweeps the
+// rest. Loose objects younger than the grace period are kept even when unreachable, they may
+// belong to an add or commit that has not written its index or commit yet.
+class GarbageCollector {
+    static final long DEFAULT_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int BATCH = 1024;
+
+    static final class Stats {
+        int reachable;
+        int removed;
+        int kept; // unreachable but within the grace period
+        long bytesReclaimed;
+        PackWriter.Stats repack; // null unless packs held unreachable objects
+    }
+
+    static Stats run(ObjectStore store, Index index, long graceMillis, int jobs)
+            throws IOException, NoSuchAlgorithmException {
+        Set<String> reachable = mark(store, index);
+        Stats stats = new Stats();
+        stats.reachable = reachable.size();
+        long cutoff = System.currentTimeMillis() - graceMillis;
+
+        List<File> garbage = new ArrayList<>();
+        for (String hash : store.looseHashes()) {
+            if (reachable.contains(hash)) {
+                continue;
+            }
+            File file = store.fileFor(hash);
+            if (file.lastModified() >= cutoff) {
+                stats.kept++;
+            } else {
+                garbage.add(file);
+            }
+        }
+        // temp files left behind by an interrupted write
+        File[] leftovers = store.dir.listFiles((d, name) -> name.startsWith("tmp_"));
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                if (file.lastModified() < cutoff) {
+                    garbage.add(file);
+                }
+            }
+        }
+
+        for (int from = 0; from < garbage.size(); from += BATCH) {
+            List<File> batch = garbage.subList(from, Math.min(garbage.size(), from + BATCH));
+            List<Long> freed = Jobs.map(jobs, batch, file -> {
+                long size = file.length();
+                return Files.deleteIfExists(file.toPath()) ? size : -1L;
+            });
+            for (long size : freed) {
+                if (size >= 0) {
+                    stats.removed++;
+                    stats.bytesReclaimed += size;
+                }
+            }
+        }
+
+        // packed objects can only go by rewriting their pack; packs without garbage stay as they are
+        List<Pack> affected = new ArrayList<>();
+        long packBytes = 0;
+        for (Pack pack : store.packs()) {
+            int unreachable = 0;
+            for (String hash : pack.hashes()) {
+                if (!reachable.contains(hash)) {
+                    unreachable++;
+                }
+            }
+            if (unreachable > 0) {
+                affected.add(pack);
+                stats.removed += unreachable;
+                packBytes += pack.packFile.length() + pack.idxFile.length();
+            }
+        }
+        if (!affected.isEmpty()) {
+            stats.repack = PackWriter.rewrite(store, index.entries(), affected, reachable);
+            if (stats.repack.name != null) {
+                File packDir = store.packDir();
+                packBytes -= new File(packDir, stats.repack.name + ".pack").length()
+                        + new File(packDir, stats.repack.name + ".idx").length();
+            }
+            stats.bytesReclaimed += packBytes;
+        }
+        return stats;
+    }
+
+    // "now", or a number with an s/m/h/d suffix (seconds without one)
+    static long parseGrace(String value) {
+        if (value.equals("now")) {
+            return 0;
+        }
+        char unit = value.charAt(value.length() - 1);
+        String number = Character.isDigit(unit) ? value : value.substring(0, value.length() - 1);
+        long amount = Long.parseLong(number);
+        return switch (unit) {
+            case 'm' -> TimeUnit.MINUTES.toMillis(amount);
+            case 'h' -> TimeUnit.HOURS.toMillis(amount);
+            case 'd' -> TimeUnit.DAYS.toMillis(amount);
+            case 's' -> TimeUnit.SECONDS.toMillis(amount);
+            default -> {
+                if (!Character.isDigit(unit)) {
+                    throw new NumberFormatException("unknown unit " + unit);
+                }
+                yield TimeUnit.SECONDS.toMillis(amount);
+            }
+        };
+    }
+
+    // everything the index and the commits point at, walking each tree only once
+    private static Set<String> mark(ObjectStore store, Index index) throws IOException {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> trees = new ArrayDeque<>();
+        List<String> blobs = new ArrayList<>();
+
+        for (IndexEntry entry : index.entries()) {
+            blobs.add(entry.hash);
+        }
+        for (String hash : CommitObject.listAll()) {
+            trees.push(CommitObject.read(hash).tree);
+        }
+        while (!trees.isEmpty()) {
+            String tree = trees.pop();
+            if (!reachable.add(tree)) {
+                continue;
+            }
+            for (Tree.Entry entry : Tree.read(tree)) {
+                if (entry.isTree) {
+                    trees.push(entry.hash);
+                } else {
+                    blobs.add(entry.hash);
+                }
+            }
+        }
+
+        // the next commit reuses cached trees without checking that they still exist, so one
+        // with anything missing under it is dropped from the cache rather than left for it
+        for (Map.Entry<String, String> cached : new ArrayList<>(index.cachedTrees().entrySet())) {
+            Set<String> subtrees = new HashSet<>();
+            List<String> found = new ArrayList<>();
+            if (complete(store, cached.getValue(), reachable, subtrees, found)) {
+                reachable.addAll(subtrees);
+                blobs.addAll(found);
+            } else {
+                index.dropCachedTree(cached.getKey());
+            }
+        }
+
+        for (String blob : blobs) {
+            if (!reachable.add(blob) || !store.contains(blob)) {
+                continue;
+            }
+            if (store.kind(blob) == ObjectStore.CHUNKED) {
+                reachable.addAll(ObjectStore.chunks(store.readRaw(blob)));
+            }
+        }
+        return reachable;
+    }
+
+    // collects the trees under tree that are not in reachable yet and their blobs; false when
+    // any of them is missing from the store
+    private static boolean complete(ObjectStore store, String tree, Set<String> reachable, Set<String> trees,
+            List<String> blobs) throws IOException {
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            String hash = pending.pop();
+            if (reachable.contains(hash) || !trees.add(hash)) {
+                continue;
+            }
+            if (!store.contains(hash)) {
+                return false;
+            }
+            for (Tree.Entry entry : Tree.read(hash)) {
+                if (entry.isTree) {
+                    pending.push(entry.hash);
+                } else if (!store.contains(entry.hash)) {
+                    return false;
+                } else {
+                    blobs.add(entry.hash);
+                }
+            }
+        }
+        return true;
+    }
+}
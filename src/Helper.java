@@ -0,0 +1,356 @@
+package src;
+
+import errors.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import utils.*;
+
+class Helper {
+
+    private static String repoRoot;
+
+    // the only canonicalization: the repository root, resolved once per process
+    protected static synchronized String repoRoot() {
+        if (repoRoot == null) {
+            try {
+                repoRoot = new File(".").getCanonicalPath().replace("\\", "/");
+            } catch (IOException e) {
+                repoRoot = new File(".").getAbsoluteFile().toPath().normalize().toString().replace("\\", "/");
+            }
+        }
+        return repoRoot;
+    }
+
+    // repo-relative, '/'-separated form of a path given on the command line, or null when it
+    // points outside the repository; works on the path string only, no filesystem access
+    protected static String toRepoPath(String path) {
+        Path cwd = Paths.get("").toAbsolutePath();
+        Path relative = cwd.relativize(Paths.get(path).toAbsolutePath().normalize());
+        if (relative.startsWith("..")) {
+            return null;
+        }
+        return relative.toString().replace("\\", "/");
+    }
+
+    // true when path is one of dirs or inside one of them; "" stands for the whole tree
+    protected static boolean isUnder(String path, Collection<String> dirs) {
+        for (String dir : dirs) {
+            if (dir.isEmpty() || path.equals(dir) || path.startsWith(dir + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // earlier indexes and snapshots stored canonical absolute paths
+    protected static String fromLegacyPath(String path) {
+        String root = repoRoot();
+        path = path.replace("\\", "/").trim();
+        if (path.startsWith(root + "/")) {
+            return path.substring(root.length() + 1);
+        }
+        return path.replaceAll("^/+", "");
+    }
+
+    // blobs of removed files stay in .kiwi/objects, commits may still reference them
+    protected static void removeDeletedFilesFromIndex(Index index) {
+        for (IndexEntry entry : new ArrayList<>(index.entries())) {
+            if (!new File(entry.path).exists()) {
+                index.remove(entry.path);
+            }
+        }
+    }
+
+    // repo-relative paths of the working tree files below dir ("" for the root), name-sorted;
+    // .kiwiignore'd files and directories are left out unless the index tracks something there
+    protected static List<String> listWorkingFiles(String dir, Index index) {
+        List<String> out = new ArrayList<>();
+        Trace.Span span = Trace.span(Trace.WALK);
+        try {
+            collectWorkingFiles(dir, out, new Ignore(), index, false);
+        } finally {
+            span.close();
+        }
+        Trace.count(Trace.FILES_WALKED, out.size());
+        return out;
+    }
+
+    // ignored but still walked, because the index has entries inside
+    protected static boolean isExcluded(Ignore ignore, Index index, String path, boolean isDir, boolean inIgnored) {
+        if (!inIgnored && !ignore.isIgnored(path, isDir)) {
+            return false;
+        }
+        return isDir ? index.entriesUnder(path).isEmpty() : index.get(path) == null;
+    }
+
+    private static void collectWorkingFiles(String dir, List<String> out, Ignore ignore, Index index, boolean inIgnored) {
+        String[] names = new File(dir.isEmpty() ? "." : dir).list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+
+        // built once per directory and shared by every child path
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        for (String name : names) {
+            if (name.equals(".kiwi") || name.startsWith(".")) {
+                continue;
+            }
+
+            String path = prefix + name;
+            boolean isDir = new File(path).isDirectory();
+            // decided before the directory is listed, so ignored trees are never read
+            if (isExcluded(ignore, index, path, isDir, inIgnored)) {
+                continue;
+            }
+            if (isDir) {
+                collectWorkingFiles(path, out, ignore, index, inIgnored || ignore.isIgnored(path, true));
+            } else {
+                out.add(path);
+            }
+        }
+    }
+
+    // order of listWorkingFiles: names sorted per directory, so '/' sorts before any other character
+    protected static final Comparator<String> WALK_ORDER = (a, b) -> {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return (x == '/' ? 0 : x + 1) - (y == '/' ? 0 : y + 1);
+            }
+        }
+        return a.length() - b.length();
+    };
+
+    protected static String fileName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    // hashes and compresses the file in one pass, returning the new index entry or null when
+    // the stat cache says it is unchanged; only reads the index, so it is safe to run
+    // from several workers at once
+    protected static IndexEntry stageFile(Index index, String path) throws FileStagingException, ObjectWriteException {
+        File file = new File(path);
+        try {
+            FileStat stat = stat(file);
+            IndexEntry old = index.get(path);
+
+            // stat data unchanged since it was staged, no need to read the file
+            if (old != null && old.isStatClean(stat) && ObjectStore.local().contains(old.hash)) {
+                Trace.count(Trace.CACHE_HITS, 1);
+                return null;
+            }
+
+            XXHash64 fast = Config.fastStatHash ? new XXHash64() : null;
+            IndexEntry staged;
+            try {
+                staged = new IndexEntry(path, ObjectStore.local().writeFile(file, fast), stat);
+            } catch (IOException e) {
+                throw new ObjectWriteException(path, e.getMessage());
+            }
+            if (fast != null) {
+                staged.fastHash = fast.digest();
+            }
+            return staged;
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new FileStagingException(path, e.getMessage());
+        }
+    }
+
+    protected static void addSingleFile(Index index, String filename)
+            throws FileStagingException, ObjectWriteException {
+        File file = new File(filename);
+
+        if (!file.exists() || file.isDirectory()) {
+            throw new FileStagingException(filename, "File does not exist or is a directory.");
+        }
+
+        String path = toRepoPath(filename);
+        if (path == null) {
+            throw new FileStagingException(filename, "File is outside the repository.");
+        }
+        if (index.get(path) == null && new Ignore().isIgnoredPath(path, false)) {
+            throw new FileStagingException(filename, "Path is ignored by " + Ignore.FILE_NAME + ".");
+        }
+
+        IndexEntry staged = stageFile(index, path);
+        if (staged != null) {
+            index.put(staged);
+        }
+    }
+
+    protected static void addAllFilesRecursively(Index index, String dir, int jobs)
+            throws KiwiException {
+        List<String> files = listWorkingFiles(dir, index);
+        List<IndexEntry> staged = Jobs.map(jobs, files, path -> stageFile(index, path));
+
+        // results come back in walk order, so the index update stays deterministic
+        for (IndexEntry entry : staged) {
+            if (entry != null) {
+                index.put(entry);
+            }
+        }
+    }
+
+    protected static FileStat stat(File file) throws IOException {
+        Trace.Span span = Trace.span(Trace.STAT);
+        try {
+            return FileStat.of(file);
+        } finally {
+            span.close();
+        }
+    }
+
+    // what status found for one working tree file; computed by workers, applied by the caller
+    protected static final class FileStatus {
+        final String path;
+        final String state; // "clean", "modified", "untracked" or "refreshed"
+        final FileStat stat;
+
+        FileStatus(String path, String state, FileStat stat) {
+            this.path = path;
+            this.state = state;
+            this.stat = stat;
+        }
+    }
+
+    protected static FileStatus checkFile(Index index, String path) {
+        File file = new File(path);
+        try {
+            IndexEntry entry = index.get(path);
+
+            if (entry == null) {
+                return new FileStatus(path, "untracked", null);
+            }
+
+            FileStat stat = stat(file);
+            if (entry.isStatClean(stat)) {
+                Trace.count(Trace.CACHE_HITS, 1);
+                return new FileStatus(path, "clean", stat);
+            }
+
+            // the fast hash was taken over the same bytes as entry.hash, so it stands in for it
+            boolean same = Config.fastStatHash && entry.fastHash != 0
+                    ? HashUtils.getFastHash(file) == entry.fastHash
+                    : entry.hash.equals(HashUtils.getFileHash(file));
+            if (!same) {
+                return new FileStatus(path, "modified", stat);
+            }
+            // content unchanged, remember the new stat so the next run can skip it
+            return new FileStatus(path, "refreshed", stat);
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.err.println("[KIWI ERROR] Could not hash file: " + file.getName());
+            return new FileStatus(path, "clean", null);
+        }
+    }
+
+    protected static String formatTimestamp(long millis) {
+        java.text.SimpleDateFormat sdf
+                = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sdf.setTimeZone(java.util.TimeZone.getDefault()); // your local timezone
+        return sdf.format(new java.util.Date(millis));
+    }
+
+    protected static String readHead() throws IOException {
+        File head = new File(".kiwi/HEAD");
+        if (!head.exists()) {
+            return null;
+        }
+        String hash = Files.readString(head.toPath()).trim();
+        return hash.isEmpty() ? null : hash;
+    }
+
+    protected static void writeHead(String hash) throws IOException {
+        Files.writeString(new File(".kiwi/HEAD").toPath(), hash + "\n");
+    }
+
+    protected static Map<String, String> treeFiles(Collection<IndexEntry> entries) {
+        Map<String, String> files = new TreeMap<>();
+        for (IndexEntry entry : entries) {
+            files.put(entry.path, entry.hash);
+        }
+        return files;
+    }
+
+    // turns the old ".kiwi/commits/<hash> <message> <date>/" snapshot folders into
+    // commit and tree objects over the shared blob store, oldest first
+    protected static int migrateLegacyCommits() throws IOException, NoSuchAlgorithmException {
+        File[] legacy = new File(".kiwi/commits").listFiles(File::isDirectory);
+        if (legacy == null || legacy.length == 0) {
+            return 0;
+        }
+
+        Map<File, Long> times = new HashMap<>();
+        java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (File dir : legacy) {
+            String[] parts = dir.getName().trim().split(" ");
+            long time = dir.lastModified();
+            if (parts.length >= 3) {
+                try {
+                    time = sdf.parse(parts[parts.length - 2] + " " + parts[parts.length - 1]).getTime();
+                } catch (java.text.ParseException e) {
+                    // keep the folder mtime
+                }
+            }
+            times.put(dir, time);
+        }
+        Arrays.sort(legacy, Comparator.comparing((File f) -> times.get(f)).thenComparing(File::getName));
+
+        String parent = readHead();
+        for (File dir : legacy) {
+            String[] parts = dir.getName().trim().split(" ");
+            String message = parts.length >= 4
+                    ? String.join(" ", Arrays.copyOfRange(parts, 1, parts.length - 2))
+                    : dir.getName().trim();
+
+            // the snapshot may hold blobs that add has since deleted from the shared store
+            File[] objects = new File(dir, "objects").listFiles(File::isFile);
+            if (objects != null) {
+                for (File object : objects) {
+                    if (!ObjectStore.local().contains(object.getName())) {
+                        Path target = ObjectStore.local().fileFor(object.getName()).toPath();
+                        Files.createDirectories(target.getParent());
+                        Files.copy(object.toPath(), target);
+                    }
+                }
+            }
+
+            List<IndexEntry> entries = new ArrayList<>();
+            File snapshotIndex = new File(dir, "index/stage.index");
+            if (snapshotIndex.exists()) {
+                for (String line : Files.readAllLines(snapshotIndex.toPath())) {
+                    IndexEntry entry = IndexEntry.parse(line);
+                    if (entry != null) {
+                        entries.add(new IndexEntry(fromLegacyPath(entry.path), entry.hash, entry.stat));
+                    }
+                }
+            }
+
+            String tree = Tree.write(treeFiles(entries));
+            CommitObject commit = new CommitObject(tree, parent, null, times.get(dir), message);
+            parent = commit.write();
+            CommitGraph.append(parent, commit);
+            deleteRecursively(dir);
+        }
+
+        writeHead(parent);
+        return legacy.length;
+    }
+
+    protected static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
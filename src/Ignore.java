@@ -0,0 +1,198 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// .kiwiignore rules, gitignore style: globs with *, ?, [...] and **, "!" to re-include,
+// a trailing "/" for directories only, and a "/" anywhere else to anchor the pattern to the
+// directory of its .kiwiignore. Every directory may have its own file; deeper files win over
+// shallower ones and within a file the last matching line wins.
+//
+// each file is compiled once: plain names go into a hash map, everything else into one regex
+// per line, and the walk asks about a directory before listing it
+class Ignore {
+    static final String FILE_NAME = ".kiwiignore";
+
+    private static final Rules NONE = new Rules();
+    private final Map<String, Rules> byDir = new HashMap<>();
+
+    private static final class Rule {
+        final boolean negate;
+        final boolean dirOnly;
+        final Pattern pattern; // null for a plain name
+
+        Rule(boolean negate, boolean dirOnly, Pattern pattern) {
+            this.negate = negate;
+            this.dirOnly = dirOnly;
+            this.pattern = pattern;
+        }
+    }
+
+    // one compiled .kiwiignore
+    private static final class Rules {
+        final List<Rule> rules = new ArrayList<>();
+        final Map<String, List<Integer>> names = new HashMap<>(); // plain name -> rule numbers, ascending
+        final List<Integer> globs = new ArrayList<>();
+
+        void add(String line) {
+            line = line.endsWith("\\ ") ? line : line.stripTrailing();
+            if (line.isEmpty() || line.startsWith("#")) {
+                return;
+            }
+            boolean negate = line.startsWith("!");
+            if (negate || line.startsWith("\\!") || line.startsWith("\\#")) {
+                line = line.substring(1);
+            }
+            boolean dirOnly = line.endsWith("/");
+            if (dirOnly) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty()) {
+                return;
+            }
+
+            int number = rules.size();
+            boolean anchored = line.contains("/");
+            if (!anchored && !hasWildcard(line)) {
+                rules.add(new Rule(negate, dirOnly, null));
+                names.computeIfAbsent(line.replace("\\", ""), k -> new ArrayList<>()).add(number);
+                return;
+            }
+            if (line.startsWith("/")) {
+                line = line.substring(1);
+            }
+            // a pattern without a slash matches at any depth
+            String regex = (anchored ? "" : "(?:.*/)?") + globToRegex(line);
+            rules.add(new Rule(negate, dirOnly, Pattern.compile(regex)));
+            globs.add(number);
+        }
+
+        // true/false when a line decides, null when none matches
+        Boolean match(String relative, String name, boolean isDir) {
+            int best = -1;
+            List<Integer> candidates = names.get(name);
+            if (candidates != null) {
+                for (int i = candidates.size() - 1; i >= 0; i--) {
+                    Rule rule = rules.get(candidates.get(i));
+                    if (!rule.dirOnly || isDir) {
+                        best = candidates.get(i);
+                        break;
+                    }
+                }
+            }
+            // only globs written after the best plain name can still override it
+            for (int i = globs.size() - 1; i >= 0 && globs.get(i) > best; i--) {
+                Rule rule = rules.get(globs.get(i));
+                if ((!rule.dirOnly || isDir) && rule.pattern.matcher(relative).matches()) {
+                    best = globs.get(i);
+                    break;
+                }
+            }
+            return best < 0 ? null : !rules.get(best).negate;
+        }
+    }
+
+    private static boolean hasWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '[') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int n = glob.length();
+        for (int i = 0; i < n; i++) {
+            char c = glob.charAt(i);
+            boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+            if (c == '*' && i + 1 < n && glob.charAt(i + 1) == '*' && segmentStart
+                    && (i + 2 == n || glob.charAt(i + 2) == '/')) {
+                if (i + 2 == n) {
+                    regex.append(".*"); // "dir/**": everything inside
+                } else {
+                    regex.append("(?:.*/)?"); // "**/": zero or more directories
+                    i++;
+                }
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                int close = glob.indexOf(']', i + 2);
+                String body = glob.substring(i + 1, close);
+                if (body.startsWith("!")) {
+                    body = "^" + body.substring(1);
+                }
+                regex.append('[').append(body.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = close;
+            } else if (c == '\\' && i + 1 < n) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    // whether the walk should skip path; only the rules matter here, ancestors are the walk's job
+    boolean isIgnored(String path, boolean isDir) {
+        String name = Helper.fileName(path);
+        String dir = parent(path);
+        while (true) {
+            Rules rules = rulesFor(dir);
+            if (rules != NONE) {
+                Boolean decision = rules.match(dir.isEmpty() ? path : path.substring(dir.length() + 1), name, isDir);
+                if (decision != null) {
+                    return decision;
+                }
+            }
+            if (dir.isEmpty()) {
+                return false;
+            }
+            dir = parent(dir);
+        }
+    }
+
+    // for a path named on the command line: inside an ignored directory counts as ignored
+    boolean isIgnoredPath(String path, boolean isDir) {
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+            if (isIgnored(path.substring(0, slash), true)) {
+                return true;
+            }
+        }
+        return isIgnored(path, isDir);
+    }
+
+    private Rules rulesFor(String dir) {
+        Rules rules = byDir.get(dir);
+        if (rules != null) {
+            return rules;
+        }
+        rules = NONE;
+        File file = new File(dir.isEmpty() ? FILE_NAME : dir + "/" + FILE_NAME);
+        if (file.isFile()) {
+            try {
+                rules = new Rules();
+                for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                    rules.add(line);
+                }
+            } catch (IOException e) {
+                System.err.println("[KIWI ERROR] Could not read " + file.getPath() + ": " + e.getMessage());
+            }
+        }
+        byDir.put(dir, rules);
+        return rules;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+}
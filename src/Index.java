@@ -0,0 +1,715 @@
+package src;
+
+import errors.IndexCorruptedException;
+import errors.IndexLockedException;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import utils.Delta;
+import utils.Colors;
+import utils.FileStat;
+import utils.HashUtils;
+import utils.Trace;
+
+// in-memory view of .kiwi/index/stage.index, loaded once per command and flushed once,
+// keyed by '/'-separated paths relative to the repository root
+//
+// on disk: "KIDX" int version int hashLength int count, then per entry (sorted by path)
+//   long size, long mtime-nanos, long file-key, [long fast hash, version 3], raw hash,
+//   varint bytes to strip from the previous path, NUL-terminated UTF-8 suffix
+// then (version 2 on) the tree cache: int count, per directory a raw tree hash and its
+// NUL-terminated path, "" for the root; followed by a SHA-1 of everything before it.
+// Paths are relative to the repository root. Indexes from before this format are text files and
+// are still read.
+//
+// the tree cache holds the tree hash of every directory whose entries have not changed since it
+// was last written, so a commit only rewrites the trees above changed paths
+//
+// small updates are appended to stage.journal instead of rewriting the whole file:
+//   "KIJL" int version int hashLength, the SHA-1 trailer of the stage.index it applies to,
+//   then one block per flush: int length, records, int CRC32 of the records, int length
+// a record is a byte op (PUT/REMOVE/TREE), varint path length, UTF-8 path, then for PUT the same
+// stat, fast hash (journal version 2) and hash fields as above and for TREE a raw tree hash.
+// Readers merge the journal over the base and stop at the first block that does not check out,
+// which is where a crash cut an append short.
+//
+// every write holds index.lock, created exclusively; a full rewrite goes into the lock file and
+// is renamed over stage.index, so readers only ever see a complete index
+class Index {
+    static final File INDEX_FILE = new File(".kiwi/index/stage.index");
+    static final File JOURNAL_FILE = new File(".kiwi/index/stage.journal");
+    static final File LOCK_FILE = new File(".kiwi/index/index.lock");
+
+    private static final byte[] MAGIC = {'K', 'I', 'D', 'X'};
+    private static final byte[] JOURNAL_MAGIC = {'K', 'I', 'J', 'L'};
+    private static final int VERSION = 3;
+    private static final int JOURNAL_VERSION = 2;
+    private static final int HEADER = 16;
+    private static final int CHECKSUM = 20;
+    private static final int JOURNAL_HEADER = 12 + CHECKSUM;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 0;
+    private static final byte TREE = 2;
+
+    // the journal is folded back into stage.index once it passes a quarter of its size
+    private static final long COMPACT_MIN_BYTES = 256 * 1024;
+    private static final long LOCK_TIMEOUT_MILLIS = 1000;
+
+    private final TreeMap<String, IndexEntry> entries = new TreeMap<>();
+    // what this process changed since loading: path -> new entry, null when removed
+    private final Map<String, IndexEntry> changes = new LinkedHashMap<>();
+    // directory -> tree hash, only for directories nothing has changed under since
+    private final Map<String, String> trees = new HashMap<>();
+    // directory -> new tree hash, null when the cached tree was dropped
+    private final Map<String, String> treeChanges = new LinkedHashMap<>();
+    // stamp() when this index was read; tree hashes are only written back if it still holds
+    private String loadedStamp;
+
+    static Index load() throws IndexCorruptedException {
+        Trace.Span span = Trace.span(Trace.INDEX_LOAD);
+        try {
+            String stamp = stamp();
+            Index index = read();
+            index.loadedStamp = stamp;
+            return index;
+        } catch (IOException e) {
+            throw new IndexCorruptedException(e.getMessage());
+        } finally {
+            span.close();
+        }
+    }
+
+    private static Index read() throws IndexCorruptedException {
+        Index index = new Index();
+        if (!INDEX_FILE.exists()) {
+            return index;
+        }
+
+        try {
+            // journal first: a compaction in between leaves a journal for the old base, which is
+            // then ignored, instead of a new base with its journal already gone
+            long journalMtime = 0;
+            byte[] journal = null;
+            try {
+                journalMtime = FileStat.of(JOURNAL_FILE).mtimeNanos;
+                journal = Files.readAllBytes(JOURNAL_FILE.toPath());
+            } catch (NoSuchFileException e) {
+                // nothing appended since the last rewrite
+            }
+
+            byte[] base = null;
+            try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ)) {
+                long indexMtime = FileStat.of(INDEX_FILE).mtimeNanos;
+                ByteBuffer buffer = map(channel);
+
+                List<IndexEntry> loaded;
+                if (hasMagic(buffer, MAGIC)) {
+                    loaded = readBinary(buffer, index.trees);
+                    base = new byte[CHECKSUM];
+                    buffer.get(buffer.limit() - CHECKSUM, base);
+                } else {
+                    loaded = readText(buffer);
+                }
+                for (IndexEntry entry : loaded) {
+                    index.add(entry, indexMtime);
+                }
+            }
+            if (journal != null && base != null) {
+                readJournal(index, ByteBuffer.wrap(journal), base, journalMtime);
+            }
+        } catch (IOException e) {
+            throw new IndexCorruptedException(e.getMessage());
+        }
+        return index;
+    }
+
+    private void add(IndexEntry entry, long writtenNanos) {
+        if (entry.isRacy(writtenNanos)) {
+            entry.stat = entry.stat.smudged();
+        }
+        entries.put(entry.path, entry);
+    }
+
+    private static void readJournal(Index index, ByteBuffer in, byte[] base, long journalMtime)
+            throws IndexCorruptedException {
+        if (in.limit() < JOURNAL_HEADER || !hasMagic(in, JOURNAL_MAGIC)) {
+            return;
+        }
+        byte[] journalBase = new byte[CHECKSUM];
+        in.get(12, journalBase);
+        if (!Arrays.equals(journalBase, base)) {
+            return; // written against an index that has since been compacted
+        }
+        int version = in.getInt(4);
+        int hashLength = in.getInt(8);
+        if (version < 1 || version > JOURNAL_VERSION) {
+            return;
+        }
+
+        int position = JOURNAL_HEADER;
+        int end;
+        while ((end = blockEnd(in, position)) > 0) {
+            ByteBuffer records = in.duplicate().position(position + 4).limit(end - 8);
+            try {
+                while (records.hasRemaining()) {
+                    byte op = records.get();
+                    byte[] path = new byte[(int) readVarint(records)];
+                    records.get(path);
+                    String relative = new String(path, StandardCharsets.UTF_8);
+                    if (op == REMOVE) {
+                        index.apply(relative, null);
+                        continue;
+                    }
+                    if (op == TREE) {
+                        byte[] hash = new byte[hashLength];
+                        records.get(hash);
+                        index.trees.put(relative, HashUtils.toHex(hash));
+                        continue;
+                    }
+                    FileStat stat = new FileStat(records.getLong(), records.getLong(), records.getLong());
+                    long fastHash = version >= 2 ? records.getLong() : 0;
+                    byte[] hash = new byte[hashLength];
+                    records.get(hash);
+                    IndexEntry entry = new IndexEntry(relative, HashUtils.toHex(hash), stat);
+                    entry.fastHash = fastHash;
+                    if (entry.isRacy(journalMtime)) {
+                        entry.stat = entry.stat.smudged();
+                    }
+                    index.apply(relative, entry);
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IndexCorruptedException("bad journal record at offset " + position);
+            }
+            position = end;
+        }
+    }
+
+    // end of the journal block starting at position, or -1 when it is missing or torn
+    private static int blockEnd(ByteBuffer in, int position) {
+        if (in.limit() - position < 12) {
+            return -1;
+        }
+        int length = in.getInt(position);
+        if (length < 0 || length > in.limit() - position - 12) {
+            return -1;
+        }
+        int end = position + 12 + length;
+        CRC32 crc = new CRC32();
+        crc.update(in.duplicate().position(position + 4).limit(position + 4 + length));
+        if (in.getInt(end - 8) != (int) crc.getValue() || in.getInt(end - 4) != length) {
+            return -1;
+        }
+        return end;
+    }
+
+    // windows refuses to replace a file that is still mapped, and the mapping only goes
+    // away with GC, so the index is read into the heap there instead
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        if (File.separatorChar != '\\') {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        return buffer.flip();
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, byte[] magic) {
+        if (buffer.limit() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<IndexEntry> readBinary(ByteBuffer buffer, Map<String, String> trees)
+            throws IndexCorruptedException {
+        int length = buffer.limit();
+        if (length < HEADER + CHECKSUM) {
+            throw new IndexCorruptedException("truncated header");
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(buffer.duplicate().limit(length - CHECKSUM));
+            byte[] expected = new byte[CHECKSUM];
+            buffer.get(length - CHECKSUM, expected);
+            if (!MessageDigest.isEqual(digest.digest(), expected)) {
+                throw new IndexCorruptedException("checksum mismatch, the index was not written completely");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IndexCorruptedException(e.getMessage());
+        }
+
+        int version = buffer.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new IndexCorruptedException("unsupported index version " + version);
+        }
+        int hashLength = buffer.getInt(8);
+        int count = buffer.getInt(12);
+
+        List<IndexEntry> loaded = new ArrayList<>(count);
+        ByteBuffer in = buffer.duplicate().position(HEADER).limit(length - CHECKSUM);
+        byte[] hash = new byte[hashLength];
+        byte[] path = new byte[256];
+        int pathLength = 0;
+
+        try {
+            for (int i = 0; i < count; i++) {
+                FileStat stat = new FileStat(in.getLong(), in.getLong(), in.getLong());
+                long fastHash = version >= 3 ? in.getLong() : 0;
+                in.get(hash);
+
+                int strip = (int) readVarint(in);
+                if (strip > pathLength) {
+                    throw new IndexCorruptedException("bad path prefix in entry " + i);
+                }
+                pathLength -= strip;
+                byte b;
+                while ((b = in.get()) != 0) {
+                    if (pathLength == path.length) {
+                        path = Arrays.copyOf(path, path.length * 2);
+                    }
+                    path[pathLength++] = b;
+                }
+
+                String relative = new String(path, 0, pathLength, StandardCharsets.UTF_8);
+                IndexEntry entry = new IndexEntry(relative, HashUtils.toHex(hash), stat);
+                entry.fastHash = fastHash;
+                loaded.add(entry);
+            }
+
+            int treeCount = version == 1 ? 0 : in.getInt();
+            for (int i = 0; i < treeCount; i++) {
+                in.get(hash);
+                int start = in.position();
+                while (in.get() != 0) {
+                }
+                byte[] dir = new byte[in.position() - 1 - start];
+                in.get(start, dir);
+                trees.put(new String(dir, StandardCharsets.UTF_8), HashUtils.toHex(hash));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IndexCorruptedException("truncated entries");
+        }
+
+        if (in.hasRemaining()) {
+            throw new IndexCorruptedException("trailing data after " + count + " entries");
+        }
+        return loaded;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    // "<path> <hash> [<size> <mtime> <file-key>]" lines with canonical absolute paths
+    private static List<IndexEntry> readText(ByteBuffer buffer) {
+        List<IndexEntry> loaded = new ArrayList<>();
+        String content = StandardCharsets.UTF_8.decode(buffer).toString();
+        for (String line : content.split("\n")) {
+            IndexEntry entry = IndexEntry.parse(line);
+            if (entry == null) {
+                continue;
+            }
+            loaded.add(new IndexEntry(Helper.fromLegacyPath(entry.path), entry.hash, entry.stat));
+        }
+        return loaded;
+    }
+
+    IndexEntry get(String path) {
+        return entries.get(path);
+    }
+
+    IndexEntry put(IndexEntry entry) {
+        changes.put(entry.path, entry);
+        return apply(entry.path, entry);
+    }
+
+    IndexEntry remove(String path) {
+        IndexEntry removed = apply(path, null);
+        if (removed != null) {
+            changes.put(path, null);
+        }
+        return removed;
+    }
+
+    // sets or removes one entry; a new hash drops the cached trees of every directory above it
+    private IndexEntry apply(String path, IndexEntry entry) {
+        IndexEntry old = entry == null ? entries.remove(path) : entries.put(path, entry);
+        if (old == null ? entry != null : entry == null || !old.hash.equals(entry.hash)) {
+            String dir = path;
+            do {
+                int slash = dir.lastIndexOf('/');
+                dir = slash < 0 ? "" : dir.substring(0, slash);
+                trees.remove(dir);
+                treeChanges.remove(dir);
+            } while (!dir.isEmpty());
+        }
+        return old;
+    }
+
+    // tree hash of a directory ("" for the root) if nothing under it changed since it was written
+    String cachedTree(String dir) {
+        return trees.get(dir);
+    }
+
+    void cacheTree(String dir, String hash) {
+        trees.put(dir, hash);
+        treeChanges.put(dir, hash);
+    }
+
+    // directory -> cached tree hash, for every directory that has one
+    Map<String, String> cachedTrees() {
+        return Collections.unmodifiableMap(trees);
+    }
+
+    // forgets the cached tree of a directory, e.g. one whose object is gone from the store
+    void dropCachedTree(String dir) {
+        if (trees.remove(dir) != null) {
+            treeChanges.put(dir, null);
+        }
+    }
+
+    // first entry path at or after path, null past the end
+    String ceilingPath(String path) {
+        return entries.ceilingKey(path);
+    }
+
+    String higherPath(String path) {
+        return entries.higherKey(path);
+    }
+
+    // stat data of an unchanged file, picked up so the next run can skip hashing it
+    void refresh(IndexEntry entry, FileStat stat) {
+        entry.stat = stat;
+        changes.put(entry.path, entry);
+    }
+
+    Collection<IndexEntry> entries() {
+        return entries.values();
+    }
+
+    // entries inside a directory, by repo-relative directory path
+    SortedMap<String, IndexEntry> entriesUnder(String dir) {
+        return entries.subMap(dir + "/", dir + "/\uffff");
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    // size, mtime and file key of stage.index and its journal, changes whenever either is written
+    static String stamp() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (File file : new File[]{INDEX_FILE, JOURNAL_FILE}) {
+            if (file.exists()) {
+                FileStat stat = FileStat.of(file);
+                sb.append(stat.size).append(' ').append(stat.mtimeNanos).append(' ').append(stat.fileKey);
+            }
+            sb.append(';');
+        }
+        return sb.toString();
+    }
+
+    // writes this process's changes; entries other processes changed meanwhile are kept unless
+    // this one changed the same path
+    void flush() throws IndexCorruptedException, IndexLockedException {
+        if (changes.isEmpty() && treeChanges.isEmpty()) {
+            return;
+        }
+
+        boolean compact = false;
+        Trace.Span span = Trace.span(Trace.INDEX_FLUSH);
+        try (Lock lock = Lock.acquire(LOCK_TIMEOUT_MILLIS)) {
+            // trees hashed from entries another process has since changed would be wrong for it
+            // dropped ones are safe to forget either way
+            if (!stamp().equals(loadedStamp)) {
+                treeChanges.values().removeIf(Objects::nonNull);
+            }
+            byte[] base = baseChecksum();
+            // appending stops paying off once a good part of the index changed; the journal
+            // has no record for a dropped tree
+            if (base == null || changes.size() + treeChanges.size() > entries.size() / 4
+                    || treeChanges.containsValue(null) || !appendJournal(base)) {
+                rewrite(lock, changes, treeChanges);
+            } else {
+                compact = JOURNAL_FILE.length() > Math.max(COMPACT_MIN_BYTES, INDEX_FILE.length() / 4);
+            }
+            changes.clear();
+            treeChanges.clear();
+            loadedStamp = stamp();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new IndexCorruptedException(e.getMessage());
+        } finally {
+            span.close();
+        }
+
+        if (compact) {
+            // not a daemon thread, the JVM finishes it after the command has printed its output
+            new Thread(Index::compact, "kiwi-index-compaction").start();
+        }
+    }
+
+    // folds the journal into stage.index; skipped when another process holds the lock, the
+    // next flush past the threshold tries again
+    static void compact() {
+        try (Lock lock = Lock.acquire(0)) {
+            if (JOURNAL_FILE.exists()) {
+                rewrite(lock, Map.of(), Map.of());
+            }
+        } catch (IndexLockedException e) {
+            // someone else is writing, and may well be compacting
+        } catch (IndexCorruptedException | IOException | NoSuchAlgorithmException e) {
+            System.err.println(Colors.RED + "[KIWI ERROR] Index compaction failed: " + e.getMessage() + Colors.RESET);
+        }
+    }
+
+    // the current index on disk, journal included, with changes on top, renamed into place
+    private static void rewrite(Lock lock, Map<String, IndexEntry> changes, Map<String, String> trees)
+            throws IndexCorruptedException, IOException, NoSuchAlgorithmException {
+        Index current = read();
+        for (Map.Entry<String, IndexEntry> change : changes.entrySet()) {
+            current.apply(change.getKey(), change.getValue());
+        }
+        for (Map.Entry<String, String> tree : trees.entrySet()) {
+            if (tree.getValue() == null) {
+                current.trees.remove(tree.getKey());
+            } else {
+                current.trees.put(tree.getKey(), tree.getValue());
+            }
+        }
+        lock.commit(current.encode(), INDEX_FILE.toPath());
+        // a journal that survives a crash here names the old base and is ignored
+        Files.deleteIfExists(JOURNAL_FILE.toPath());
+    }
+
+    // the SHA-1 trailer of stage.index, or null when there is no binary index to append to
+    private static byte[] baseChecksum() throws IOException {
+        if (!INDEX_FILE.exists()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(INDEX_FILE, "r")) {
+            if (file.length() < HEADER + CHECKSUM) {
+                return null;
+            }
+            byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return null;
+            }
+            byte[] checksum = new byte[CHECKSUM];
+            file.seek(file.length() - CHECKSUM);
+            file.readFully(checksum);
+            return checksum;
+        }
+    }
+
+    // appends one block with the changes; false when the journal ends in a torn block, whose
+    // records would hide everything after them, or is in an older format, so the caller
+    // rewrites instead
+    private boolean appendJournal(byte[] base) throws IOException {
+        int hashLength = entries.isEmpty()
+                ? HashUtils.algorithm().length
+                : entries.firstEntry().getValue().hash.length() / 2;
+        ByteArrayOutputStream block = new ByteArrayOutputStream(changes.size() * 64 + 12);
+        DataOutputStream out = new DataOutputStream(block);
+        out.writeInt(0); // length, filled in below
+        for (Map.Entry<String, IndexEntry> change : changes.entrySet()) {
+            byte[] path = change.getKey().getBytes(StandardCharsets.UTF_8);
+            IndexEntry entry = change.getValue();
+            out.writeByte(entry == null ? REMOVE : PUT);
+            Delta.writeVarint(out, path.length);
+            out.write(path);
+            if (entry != null) {
+                out.writeLong(entry.stat.size);
+                out.writeLong(entry.stat.mtimeNanos);
+                out.writeLong(entry.stat.fileKey);
+                out.writeLong(entry.fastHash);
+                out.write(HashUtils.fromHex(entry.hash));
+            }
+        }
+        // after the entries, whose replay drops cached trees above them
+        for (Map.Entry<String, String> tree : treeChanges.entrySet()) {
+            byte[] path = tree.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(TREE);
+            Delta.writeVarint(out, path.length);
+            out.write(path);
+            out.write(HashUtils.fromHex(tree.getValue()));
+        }
+        int length = block.size() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(block.toByteArray(), 4, length);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(length);
+        ByteBuffer bytes = ByteBuffer.wrap(block.toByteArray()).putInt(0, length);
+
+        try (FileChannel channel = FileChannel.open(JOURNAL_FILE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer header = journalHeader(channel);
+            if (header == null || !Arrays.equals(Arrays.copyOfRange(header.array(), 12, JOURNAL_HEADER), base)) {
+                // missing, or left over from before the last rewrite
+                header = ByteBuffer.allocate(JOURNAL_HEADER);
+                header.put(JOURNAL_MAGIC).putInt(JOURNAL_VERSION).putInt(hashLength).put(base).flip();
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+                size = JOURNAL_HEADER;
+            } else if (header.getInt(4) != JOURNAL_VERSION || header.getInt(8) != hashLength
+                    || !lastBlockIntact(channel, size)) {
+                return false;
+            }
+            writeFully(channel, bytes, size);
+        }
+        return true;
+    }
+
+    private static ByteBuffer journalHeader(FileChannel channel) throws IOException {
+        if (channel.size() < JOURNAL_HEADER) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER);
+        readFully(channel, header, 0);
+        return hasMagic(header, JOURNAL_MAGIC) ? header : null;
+    }
+
+    // the trailing length points back at the block start, so only the last block is read
+    private static boolean lastBlockIntact(FileChannel channel, long size) throws IOException {
+        if (size == JOURNAL_HEADER) {
+            return true;
+        }
+        ByteBuffer tail = ByteBuffer.allocate(4);
+        readFully(channel, tail, size - 4);
+        long start = size - 12 - tail.getInt(0);
+        if (tail.getInt(0) < 0 || start < JOURNAL_HEADER) {
+            return false;
+        }
+        ByteBuffer block = ByteBuffer.allocate((int) (size - start));
+        readFully(channel, block, start);
+        return blockEnd(block, 0) == block.limit();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    // index.lock, held by whoever writes the index; a full rewrite is written into the lock file
+    // itself and renamed over the target, which also releases the lock
+    private static final class Lock implements Closeable {
+        private boolean committed;
+
+        static Lock acquire(long timeoutMillis) throws IndexLockedException, IOException {
+            Files.createDirectories(LOCK_FILE.getParentFile().toPath());
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (true) {
+                try {
+                    Files.createFile(LOCK_FILE.toPath());
+                    return new Lock();
+                } catch (FileAlreadyExistsException e) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        throw new IndexLockedException(LOCK_FILE.getPath());
+                    }
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IndexLockedException(LOCK_FILE.getPath());
+                }
+            }
+        }
+
+        void commit(byte[] content, Path target) throws IOException {
+            try (FileChannel channel = FileChannel.open(LOCK_FILE.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(content), 0);
+                channel.force(false);
+            }
+            Files.move(LOCK_FILE.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        // after a commit the lock file is gone and the name may already be someone else's lock
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                Files.deleteIfExists(LOCK_FILE.toPath());
+            }
+        }
+    }
+
+    private byte[] encode() throws IOException, NoSuchAlgorithmException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER + entries.size() * 64 + CHECKSUM);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        int hashLength = entries.isEmpty()
+                ? HashUtils.algorithm().length
+                : entries.firstEntry().getValue().hash.length() / 2;
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(hashLength);
+        out.writeInt(entries.size());
+
+        byte[] previous = new byte[0];
+        for (IndexEntry entry : entries.values()) {
+            byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+
+            out.writeLong(entry.stat.size);
+            out.writeLong(entry.stat.mtimeNanos);
+            out.writeLong(entry.stat.fileKey);
+            out.writeLong(entry.fastHash);
+            out.write(HashUtils.fromHex(entry.hash));
+
+            int common = 0;
+            int max = Math.min(previous.length, path.length);
+            while (common < max && previous[common] == path[common]) {
+                common++;
+            }
+            Delta.writeVarint(out, previous.length - common);
+            out.write(path, common, path.length - common);
+            out.write(0);
+            previous = path;
+        }
+
+        out.writeInt(trees.size());
+        for (Map.Entry<String, String> tree : new TreeMap<>(trees).entrySet()) {
+            out.write(HashUtils.fromHex(tree.getValue()));
+            out.write(tree.getKey().getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+        }
+        out.flush();
+
+        byte[] checksum = MessageDigest.getInstance("SHA-1").digest(bytes.toByteArray());
+        out.write(checksum);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,55 @@
+package src;
+
+import utils.FileStat;
+
+class IndexEntry {
+    final String path;
+    String hash;
+    FileStat stat;
+    long fastHash; // XXH64 of the staged content when stathash is on, 0 when not recorded
+
+    IndexEntry(String path, String hash, FileStat stat) {
+        this.path = path;
+        this.hash = hash;
+        this.stat = stat;
+    }
+
+    // text indexes from before the binary format, only read when upgrading:
+    // <path> <hash> <size> <mtime-nanos> <file-key>
+    // older ones only have "<path> <hash>", those entries get a smudged stat
+    static IndexEntry parse(String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return null;
+        }
+
+        String[] parts = line.split(" ");
+        int n = parts.length;
+        if (n >= 5) {
+            try {
+                FileStat stat = new FileStat(Long.parseLong(parts[n - 3]),
+                        Long.parseLong(parts[n - 2]), Long.parseLong(parts[n - 1]));
+                String path = String.join(" ", java.util.Arrays.copyOfRange(parts, 0, n - 4));
+                return new IndexEntry(path, parts[n - 4], stat);
+            } catch (NumberFormatException e) {
+                // not a stat line, fall back to the old format below
+            }
+        }
+
+        String[] legacy = line.split(" ", 2);
+        if (legacy.length < 2) {
+            return null;
+        }
+        return new IndexEntry(legacy[0], legacy[1].trim(), new FileStat(FileStat.SMUDGED, 0, 0));
+    }
+
+    // stat data is only trusted when the file was last modified strictly before the
+    // index was written; a change in the same timestamp tick would otherwise go unseen
+    boolean isRacy(long indexMtimeNanos) {
+        return stat.mtimeNanos >= indexMtimeNanos;
+    }
+
+    boolean isStatClean(FileStat current) {
+        return stat.matches(current);
+    }
+}
@@ -0,0 +1,528 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.*;
+import utils.Chunker;
+import utils.HashUtils;
+import utils.Trace;
+import utils.XXHash64;
+
+// .kiwi/objects: content-addressed, deflate-compressed objects, fanned out by the first two hex
+// digits into .kiwi/objects/ab/cdef..., which keeps every directory small enough for fast lookups
+// a loose object is "KWO" + kind byte followed by the deflated content; the hash is
+// always taken over the uncompressed content. Objects written before compression was
+// introduced have no header and are read back as-is. Objects not found loose are
+// looked up in the packs under .kiwi/objects/pack.
+//
+// files of CHUNK_THRESHOLD bytes or more are stored as CHUNKED objects: still named by the hash
+// of the whole content, but holding "<chunk hash> <length>" lines that point at blobs cut by
+// utils.Chunker, so versions of a large file share their unchanged chunks
+class ObjectStore {
+    static final char BLOB = 'b';
+    static final char TREE = 't';
+    static final char CHUNKED = 'c';
+    static final long CHUNK_THRESHOLD = 8L * 1024 * 1024;
+
+    private static final byte[] MAGIC = {'K', 'W', 'O'};
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // smaller files are read into memory once, hashed, and only compressed when the object is new
+    private static final long IN_MEMORY_LIMIT = 1024 * 1024;
+    private static ObjectStore local;
+
+    final File dir;
+    private List<Pack> packs;
+    // names in each fan-out directory, listed on the first lookup there; a hash missing from
+    // its set is not stored loose, one that is present is still checked on disk because gc or
+    // repack in another process may have removed it since
+    private final Map<String, Set<String>> listed = new ConcurrentHashMap<>();
+
+    ObjectStore(File dir) {
+        this.dir = dir;
+    }
+
+    static synchronized ObjectStore local() {
+        if (local == null) {
+            local = open(new File(".kiwi/objects"));
+        }
+        return local;
+    }
+
+    // the store of any repository on disk, e.g. the other side of a push or pull
+    static ObjectStore open(File dir) {
+        ObjectStore store = new ObjectStore(dir);
+        store.fanOutFlatObjects();
+        return store;
+    }
+
+    File fileFor(String hash) {
+        return new File(new File(dir, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private Set<String> listed(String hash) {
+        return listed.computeIfAbsent(hash.substring(0, 2), fanout -> {
+            Set<String> names = ConcurrentHashMap.newKeySet();
+            String[] files = new File(dir, fanout).list();
+            if (files != null) {
+                names.addAll(Arrays.asList(files));
+            }
+            return names;
+        });
+    }
+
+    boolean contains(String hash) {
+        return (listed(hash).contains(hash.substring(2)) && fileFor(hash).exists()) || findPack(hash) != null;
+    }
+
+    // contains(), but a loose object that is about to be referenced again also gets a new
+    // mtime, so a concurrent gc sees it as fresh and keeps it
+    boolean freshen(String hash) {
+        if (listed(hash).contains(hash.substring(2)) && fileFor(hash).setLastModified(System.currentTimeMillis())) {
+            return true;
+        }
+        return findPack(hash) != null;
+    }
+
+    // objects from before the fan-out sit directly in objects/; moved once, on first use
+    private void fanOutFlatObjects() {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (!isHash(name)) {
+                continue;
+            }
+            try {
+                Path target = fileFor(name).toPath();
+                Files.createDirectories(target.getParent());
+                Files.move(new File(dir, name).toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | NoSuchFileException e) {
+                // another process got there first, the content is the same
+                new File(dir, name).delete();
+            } catch (IOException e) {
+                System.err.println("[KIWI ERROR] Could not move object " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    File packDir() {
+        return new File(dir, "pack");
+    }
+
+    synchronized List<Pack> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            File[] idxFiles = packDir().listFiles((d, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+            if (idxFiles != null) {
+                Arrays.sort(idxFiles);
+                for (File idxFile : idxFiles) {
+                    try {
+                        packs.add(Pack.open(idxFile));
+                    } catch (IOException e) {
+                        System.err.println("[KIWI ERROR] Skipping unreadable pack " + idxFile.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    // drop cached pack handles, e.g. after a repack replaced them
+    synchronized void reloadPacks() throws IOException {
+        if (packs != null) {
+            for (Pack pack : packs) {
+                pack.close();
+            }
+        }
+        packs = null;
+    }
+
+    private Pack findPack(String hash) {
+        for (Pack pack : packs()) {
+            if (pack.contains(hash)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    // hashes of all loose objects, skipping temp files and the pack directory
+    List<String> looseHashes() {
+        List<String> out = new ArrayList<>();
+        String[] fanouts = dir.list();
+        if (fanouts == null) {
+            return out;
+        }
+        for (String fanout : fanouts) {
+            if (fanout.length() != 2) {
+                continue;
+            }
+            String[] names = new File(dir, fanout).list();
+            if (names != null) {
+                for (String name : names) {
+                    if (isHash(fanout + name)) {
+                        out.add(fanout + name);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    static boolean isHash(String name) {
+        if (name.length() < 40) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // reads the file once, feeding the digest and the deflater from the same buffer
+    String writeFile(File file) throws IOException, NoSuchAlgorithmException {
+        return writeFile(file, null);
+    }
+
+    // fast, when given, is fed the same bytes the object hash is taken over
+    String writeFile(File file, XXHash64 fast) throws IOException, NoSuchAlgorithmException {
+        Trace.Span span = Trace.span(Trace.OBJECT_WRITE);
+        try {
+            Trace.count(Trace.FILES_HASHED, 1);
+            Trace.count(Trace.BYTES_READ, file.length());
+            return file.length() >= CHUNK_THRESHOLD ? writeChunked(file, fast) : writeWhole(file, fast);
+        } finally {
+            span.close();
+        }
+    }
+
+    // one read either way: the digest and the deflater are fed from the same buffer, and the
+    // compressed temp file is dropped when the hash turns out to be in the store already
+    private String writeWhole(File file, XXHash64 fast) throws IOException, NoSuchAlgorithmException {
+        if (file.length() <= IN_MEMORY_LIMIT) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            if (fast != null) {
+                fast.update(content, 0, content.length);
+            }
+            return writeBytes(BLOB, content, 0, content.length);
+        }
+
+        MessageDigest digest = HashUtils.newDigest();
+        Path tmp = newTempFile(dir.toPath());
+        try {
+            try (InputStream in = new FileInputStream(file);
+                    OutputStream out = openCompressed(tmp, BLOB)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                    if (fast != null) {
+                        fast.update(buffer, 0, n);
+                    }
+                    out.write(buffer, 0, n);
+                }
+            }
+            String hash = HashUtils.toHex(digest.digest());
+            if (!freshen(hash)) {
+                moveIntoPlace(tmp, hash);
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // one pass again: the whole-file digest is fed while the buffer fills, and each chunk is
+    // hashed and compressed as soon as its boundary is found; memory stays at one MAX_SIZE buffer
+    private String writeChunked(File file, XXHash64 fast) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = HashUtils.newDigest();
+        StringBuilder chunks = new StringBuilder();
+        byte[] buffer = new byte[Chunker.MAX_SIZE];
+        int filled = 0;
+        boolean eof = false;
+
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                while (!eof && filled < buffer.length) {
+                    int n = in.read(buffer, filled, buffer.length - filled);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        digest.update(buffer, filled, n);
+                        if (fast != null) {
+                            fast.update(buffer, filled, n);
+                        }
+                        filled += n;
+                    }
+                }
+                if (filled == 0) {
+                    break;
+                }
+
+                int cut = Chunker.cut(buffer, 0, filled);
+                String chunk = writeBytes(BLOB, buffer, 0, cut);
+                chunks.append(chunk).append(' ').append(cut).append('\n');
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+            }
+        }
+
+        String hash = HashUtils.toHex(digest.digest());
+        if (!freshen(hash)) {
+            byte[] list = chunks.toString().getBytes(StandardCharsets.UTF_8);
+            store(hash, CHUNKED, list, 0, list.length);
+        }
+        return hash;
+    }
+
+    String writeBytes(char kind, byte[] content) throws IOException, NoSuchAlgorithmException {
+        Trace.Span span = Trace.span(Trace.OBJECT_WRITE);
+        try {
+            return writeBytes(kind, content, 0, content.length);
+        } finally {
+            span.close();
+        }
+    }
+
+    String writeBytes(char kind, byte[] content, int offset, int length) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = HashUtils.newDigest();
+        digest.update(content, offset, length);
+        String hash = HashUtils.toHex(digest.digest());
+        if (!freshen(hash)) {
+            store(hash, kind, content, offset, length);
+        }
+        return hash;
+    }
+
+    private void store(String hash, char kind, byte[] content, int offset, int length) throws IOException {
+        Path tmp = newTempFile(dir.toPath());
+        try {
+            try (OutputStream out = openCompressed(tmp, kind)) {
+                out.write(content, offset, length);
+            }
+            moveIntoPlace(tmp, hash);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // a CHUNKED object that arrived from another repository: its chunks must already be here,
+    // and hash is checked against their concatenation before the list is stored under it
+    void writeChunkList(String hash, byte[] list) throws IOException, NoSuchAlgorithmException {
+        if (freshen(hash)) {
+            return;
+        }
+        MessageDigest digest = HashUtils.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (String chunk : chunks(list)) {
+            try (InputStream in = open(chunk, false)) {
+                for (int n; (n = in.read(buffer)) > 0; ) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        if (!HashUtils.toHex(digest.digest()).equals(hash)) {
+            throw new IOException("object " + hash + " does not match its content");
+        }
+        store(hash, CHUNKED, list, 0, list.length);
+    }
+
+    // uncompressed content of an object, whichever way it is stored; chunked objects are
+    // reassembled as the stream is read, one chunk at a time
+    InputStream open(String hash) throws IOException {
+        return open(hash, true);
+    }
+
+    private InputStream open(String hash, boolean expand) throws IOException {
+        File file = fileFor(hash);
+        if (!file.isFile()) {
+            Pack pack = findPack(hash);
+            if (pack == null) {
+                throw new FileNotFoundException("no such object " + hash);
+            }
+            byte[] content = pack.read(hash);
+            if (expand && pack.kind(hash) == CHUNKED) {
+                return new ChunkedInputStream(chunks(content));
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        in.mark(HEADER_LENGTH);
+        byte[] header = in.readNBytes(HEADER_LENGTH);
+        if (hasHeader(header)) {
+            InputStream inflated = new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+            if (expand && header[MAGIC.length] == CHUNKED) {
+                try (inflated) {
+                    return new ChunkedInputStream(chunks(inflated.readAllBytes()));
+                }
+            }
+            return inflated;
+        }
+        in.reset();
+        return in;
+    }
+
+    byte[] readBytes(String hash) throws IOException {
+        try (InputStream in = open(hash)) {
+            return in.readAllBytes();
+        }
+    }
+
+    // content as stored, i.e. the chunk list for CHUNKED objects
+    byte[] readRaw(String hash) throws IOException {
+        try (InputStream in = open(hash, false)) {
+            return in.readAllBytes();
+        }
+    }
+
+    // chunk hashes of a CHUNKED object's content, in file order
+    static List<String> chunks(byte[] content) {
+        List<String> out = new ArrayList<>();
+        for (String line : new String(content, StandardCharsets.UTF_8).split("\n")) {
+            int space = line.indexOf(' ');
+            if (space > 0) {
+                out.add(line.substring(0, space));
+            }
+        }
+        return out;
+    }
+
+    // opens each chunk only once the one before it is used up
+    private final class ChunkedInputStream extends InputStream {
+        private final Iterator<String> chunks;
+        private InputStream current;
+
+        ChunkedInputStream(List<String> chunks) {
+            this.chunks = chunks.iterator();
+        }
+
+        private boolean advance() throws IOException {
+            while (current == null) {
+                if (!chunks.hasNext()) {
+                    return false;
+                }
+                current = open(chunks.next(), false);
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (advance()) {
+                int n = current.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    // BLOB, TREE or CHUNKED; objects stored before headers existed read as BLOB
+    char kind(String hash) throws IOException {
+        File file = fileFor(hash);
+        if (!file.isFile()) {
+            Pack pack = findPack(hash);
+            if (pack == null) {
+                throw new FileNotFoundException("no such object " + hash);
+            }
+            return pack.kind(hash);
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] header = in.readNBytes(HEADER_LENGTH);
+            return hasHeader(header) ? (char) header[MAGIC.length] : BLOB;
+        }
+    }
+
+    static boolean hasHeader(byte[] header) {
+        if (header.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return header[MAGIC.length] == BLOB || header[MAGIC.length] == TREE || header[MAGIC.length] == CHUNKED;
+    }
+
+    private static OutputStream openCompressed(Path tmp, char kind) throws IOException {
+        OutputStream raw = new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE);
+        raw.write(MAGIC);
+        raw.write(kind);
+        return new DeflaterOutputStream(raw, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    // unlike Files.createTempFile this keeps the umask permissions, objects stay readable to the group
+    static Path newTempFile(Path dir) throws IOException {
+        return newTempFile(dir, "tmp_");
+    }
+
+    static Path newTempFile(Path dir, String prefix) throws IOException {
+        while (true) {
+            Path tmp = dir.resolve(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+            try {
+                return Files.createFile(tmp);
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+    }
+
+    // identical content may be written by several workers at once; the first rename wins
+    private void moveIntoPlace(Path tmp, String hash) throws IOException {
+        File target = fileFor(hash);
+        if (target.exists()) {
+            target.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        Files.createDirectories(target.toPath().getParent());
+        Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        listed(hash).add(hash.substring(2));
+        Trace.count(Trace.OBJECTS_WRITTEN, 1);
+    }
+}
@@ -0,0 +1,213 @@
+package src;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import utils.Delta;
+import utils.HashUtils;
+
+// read side of .kiwi/objects/pack/pack-<sha>.{pack,idx}
+//
+// pack: "KPCK" int version int count, then per object
+//         byte kind, byte storage (FULL or DELTA), [long base offset if DELTA],
+//         int raw length, int compressed length, deflated payload
+//       followed by a SHA-1 of everything before it
+// idx:  "KPIX" int version int hashLength int count, int[256] fanout,
+//       count sorted raw hashes, count long offsets into the pack
+class Pack implements Closeable {
+    static final byte[] PACK_MAGIC = {'K', 'P', 'C', 'K'};
+    static final byte[] IDX_MAGIC = {'K', 'P', 'I', 'X'};
+    static final int VERSION = 1;
+    static final byte FULL = 0;
+    static final byte DELTA = 1;
+
+    private static final int IDX_HEADER = 16;
+    private static final int ENTRY_HEADER = 1 + 1 + 8 + 4 + 4;
+
+    final File packFile;
+    final File idxFile;
+    private final ByteBuffer idx;
+    private final FileChannel pack;
+    private final int hashLength;
+    private final int count;
+
+    private Pack(File idxFile, File packFile) throws IOException {
+        this.idxFile = idxFile;
+        this.packFile = packFile;
+        try (FileChannel channel = FileChannel.open(idxFile.toPath(), StandardOpenOption.READ)) {
+            idx = map(channel);
+        }
+
+        byte[] magic = new byte[4];
+        idx.get(0, magic);
+        if (!Arrays.equals(magic, IDX_MAGIC) || idx.getInt(4) != VERSION) {
+            throw new IOException("not a pack index: " + idxFile.getName());
+        }
+        hashLength = idx.getInt(8);
+        count = idx.getInt(12);
+        pack = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+    }
+
+    // a mapped idx can only be deleted on windows once GC has dropped the mapping, which would
+    // break repack and gc, so there the idx is read into the heap like Index does
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        if (File.separatorChar != '\\') {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        return buffer.flip();
+    }
+
+    static Pack open(File idxFile) throws IOException {
+        String name = idxFile.getName();
+        File packFile = new File(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        return new Pack(idxFile, packFile);
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean contains(String hash) {
+        return find(hash) >= 0;
+    }
+
+    // binary search inside the fanout bucket of the first hash byte
+    long find(String hash) {
+        byte[] key = HashUtils.fromHex(hash);
+        if (key.length != hashLength) {
+            return -1;
+        }
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(IDX_HEADER + (first - 1) * 4);
+        int hi = idx.getInt(IDX_HEADER + first * 4) - 1;
+
+        int hashes = IDX_HEADER + 256 * 4;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(hashes + mid * hashLength, key);
+            if (cmp == 0) {
+                return idx.getLong(hashes + count * hashLength + mid * 8);
+            }
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int position, byte[] key) {
+        for (int i = 0; i < hashLength; i++) {
+            int a = idx.get(position + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    List<String> hashes() {
+        List<String> out = new ArrayList<>(count);
+        int hashes = IDX_HEADER + 256 * 4;
+        byte[] raw = new byte[hashLength];
+        for (int i = 0; i < count; i++) {
+            idx.get(hashes + i * hashLength, raw);
+            out.add(HashUtils.toHex(raw));
+        }
+        return out;
+    }
+
+    byte[] read(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            throw new FileNotFoundException("no such object " + hash);
+        }
+        return readAt(offset);
+    }
+
+    char kind(String hash) throws IOException {
+        long offset = find(hash);
+        if (offset < 0) {
+            throw new FileNotFoundException("no such object " + hash);
+        }
+        return (char) readHeader(offset).get(0);
+    }
+
+    private ByteBuffer readHeader(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+        while (header.hasRemaining()) {
+            if (pack.read(header, offset + header.position()) < 0) {
+                break;
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    private byte[] readAt(long offset) throws IOException {
+        ByteBuffer header = readHeader(offset);
+        if (header.remaining() < ENTRY_HEADER - 8) {
+            throw new IOException("truncated pack entry at " + offset + " in " + packFile.getName());
+        }
+        header.get(); // kind
+        byte storage = header.get();
+        long baseOffset = -1;
+        if (storage == DELTA) {
+            baseOffset = header.getLong();
+        }
+        int rawLength = header.getInt();
+        int compressedLength = header.getInt();
+
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+        long position = offset + header.position();
+        while (compressed.hasRemaining()) {
+            int n = pack.read(compressed, position + compressed.position());
+            if (n < 0) {
+                throw new IOException("truncated pack entry at " + offset + " in " + packFile.getName());
+            }
+        }
+
+        byte[] payload = inflate(compressed.array(), rawLength);
+        if (storage == DELTA) {
+            return Delta.apply(readAt(baseOffset), payload);
+        }
+        return payload;
+    }
+
+    static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] out = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(out, n, rawLength - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IOException("corrupt pack entry");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt pack entry: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        pack.close();
+    }
+}
@@ -0,0 +1,301 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import utils.Delta;
+import utils.HashUtils;
+
+// write side of packs: bundles every loose and packed object into one new pack
+class PackWriter {
+    private static final int MAX_DEPTH = 10;
+    // bigger loose objects stay loose, they gain little from packing and would be held in memory
+    private static final long MAX_PACKED_SIZE = 16L * 1024 * 1024;
+
+    static final class Stats {
+        String name;
+        int objects;
+        int deltas;
+        int removedLoose;
+        long packBytes;
+    }
+
+    static Stats repack(ObjectStore store, Collection<IndexEntry> staged)
+            throws IOException, NoSuchAlgorithmException {
+        return repack(store, staged, null);
+    }
+
+    // with keep set, only those objects go into the new pack: packed objects outside it are
+    // dropped with the old packs and loose ones outside it are left alone
+    static Stats repack(ObjectStore store, Collection<IndexEntry> staged, Set<String> keep)
+            throws IOException, NoSuchAlgorithmException {
+        LinkedHashSet<String> objects = new LinkedHashSet<>();
+        List<String> loose = new ArrayList<>();
+        for (String hash : store.looseHashes()) {
+            if (store.fileFor(hash).length() <= MAX_PACKED_SIZE && (keep == null || keep.contains(hash))) {
+                objects.add(hash);
+                loose.add(hash);
+            }
+        }
+        for (Pack pack : store.packs()) {
+            for (String hash : pack.hashes()) {
+                if (keep == null || keep.contains(hash)) {
+                    objects.add(hash);
+                }
+            }
+        }
+        return write(store, staged, objects, loose, store.packs());
+    }
+
+    // gc: only the given packs are rewritten, into one pack of their members in keep; loose
+    // objects and the other packs are left as they are
+    static Stats rewrite(ObjectStore store, Collection<IndexEntry> staged, List<Pack> packs, Set<String> keep)
+            throws IOException, NoSuchAlgorithmException {
+        LinkedHashSet<String> objects = new LinkedHashSet<>();
+        for (Pack pack : packs) {
+            for (String hash : pack.hashes()) {
+                if (keep.contains(hash)) {
+                    objects.add(hash);
+                }
+            }
+        }
+        return write(store, staged, objects, List.of(), packs);
+    }
+
+    // packs objects, then deletes the loose ones among them and the old packs; with nothing to
+    // pack only the old packs go
+    private static Stats write(ObjectStore store, Collection<IndexEntry> staged, Set<String> objects,
+            List<String> loose, List<Pack> old) throws IOException, NoSuchAlgorithmException {
+        old = new ArrayList<>(old);
+        Stats stats = new Stats();
+        if (objects.isEmpty()) {
+            dropPacks(store, old);
+            return stats;
+        }
+
+        File packDir = store.packDir();
+        packDir.mkdirs();
+        Path tmpPack = ObjectStore.newTempFile(packDir.toPath());
+        Path tmpIdx = ObjectStore.newTempFile(packDir.toPath());
+        try {
+            Map<String, Long> offsets = new HashMap<>();
+            byte[] checksum = writePack(store, tmpPack, order(objects, versionsByPath(staged)), offsets, stats);
+
+            stats.name = "pack-" + HashUtils.toHex(checksum);
+            writeIdx(tmpIdx, offsets);
+
+            File packFile = new File(packDir, stats.name + ".pack");
+            File idxFile = new File(packDir, stats.name + ".idx");
+            // the idx goes last, readers only look for packs through it
+            Files.move(tmpPack, packFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIdx, idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stats.packBytes = packFile.length();
+
+            old.removeIf(pack -> pack.idxFile.equals(idxFile));
+            dropPacks(store, old);
+            for (String hash : loose) {
+                if (Files.deleteIfExists(store.fileFor(hash).toPath())) {
+                    stats.removedLoose++;
+                }
+            }
+            return stats;
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            Files.deleteIfExists(tmpIdx);
+        }
+    }
+
+    // closes every pack first, a mapped or open pack cannot be deleted on Windows
+    private static void dropPacks(ObjectStore store, List<Pack> old) throws IOException {
+        store.reloadPacks();
+        for (Pack pack : old) {
+            Files.deleteIfExists(pack.idxFile.toPath());
+            Files.deleteIfExists(pack.packFile.toPath());
+        }
+    }
+
+    // path -> object hashes seen at that path, newest first; the index counts as newest
+    private static Map<String, List<String>> versionsByPath(Collection<IndexEntry> staged) throws IOException {
+        Map<String, List<String>> versions = new TreeMap<>();
+        Set<String> assigned = new HashSet<>();
+
+        for (Map.Entry<String, String> file : Helper.treeFiles(staged).entrySet()) {
+            if (assigned.add(file.getValue())) {
+                versions.computeIfAbsent(file.getKey(), k -> new ArrayList<>()).add(file.getValue());
+            }
+        }
+
+        List<CommitObject> commits = new ArrayList<>();
+        for (String hash : CommitObject.listAll()) {
+            commits.add(CommitObject.read(hash));
+        }
+        commits.sort(Comparator.comparingLong((CommitObject c) -> c.timestamp).reversed());
+
+        for (CommitObject commit : commits) {
+            collect(commit.tree, "", versions, assigned);
+        }
+        return versions;
+    }
+
+    private static void collect(String treeHash, String path, Map<String, List<String>> versions, Set<String> assigned)
+            throws IOException {
+        // a tree already seen has all of its children assigned too
+        if (!assigned.add(treeHash)) {
+            return;
+        }
+        versions.computeIfAbsent(path + "/", k -> new ArrayList<>()).add(treeHash);
+
+        for (Tree.Entry entry : Tree.read(treeHash)) {
+            String child = path.isEmpty() ? entry.name : path + "/" + entry.name;
+            if (entry.isTree) {
+                collect(entry.hash, child, versions, assigned);
+            } else if (assigned.add(entry.hash)) {
+                versions.computeIfAbsent(child, k -> new ArrayList<>()).add(entry.hash);
+            }
+        }
+    }
+
+    // groups versions of the same path together so each can delta against its newer neighbour
+    private static List<List<String>> order(Set<String> objects, Map<String, List<String>> versions) {
+        List<List<String>> groups = new ArrayList<>();
+        Set<String> placed = new HashSet<>();
+        for (List<String> hashes : versions.values()) {
+            List<String> group = new ArrayList<>();
+            for (String hash : hashes) {
+                if (objects.contains(hash) && placed.add(hash)) {
+                    group.add(hash);
+                }
+            }
+            if (!group.isEmpty()) {
+                groups.add(group);
+            }
+        }
+        for (String hash : objects) {
+            if (placed.add(hash)) {
+                groups.add(List.of(hash));
+            }
+        }
+        return groups;
+    }
+
+    private static byte[] writePack(ObjectStore store, Path tmpPack, List<List<String>> groups,
+            Map<String, Long> offsets, Stats stats) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        int count = 0;
+        for (List<String> group : groups) {
+            count += group.size();
+        }
+
+        try (OutputStream out = new DigestOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpPack), 64 * 1024), digest)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.put(Pack.PACK_MAGIC).putInt(Pack.VERSION).putInt(count);
+            out.write(header.array());
+            long offset = header.capacity();
+
+            for (List<String> group : groups) {
+                // newest version is stored whole, older ones as deltas against the one before
+                byte[] base = null;
+                long baseOffset = -1;
+                int depth = 0;
+
+                for (String hash : group) {
+                    char kind = store.kind(hash);
+                    // chunked objects are packed as their chunk list, the chunks are objects of their own
+                    byte[] content = store.readRaw(hash);
+                    byte storage = Pack.FULL;
+                    byte[] payload = content;
+
+                    if (base != null && depth < MAX_DEPTH
+                            && base.length <= MAX_PACKED_SIZE && content.length <= MAX_PACKED_SIZE) {
+                        byte[] delta = Delta.create(base, content);
+                        if (delta.length < content.length / 2) {
+                            storage = Pack.DELTA;
+                            payload = delta;
+                        }
+                    }
+
+                    byte[] compressed = deflate(deflater, payload);
+                    ByteBuffer entry = ByteBuffer.allocate(18);
+                    entry.put((byte) kind).put(storage);
+                    if (storage == Pack.DELTA) {
+                        entry.putLong(baseOffset);
+                    }
+                    entry.putInt(payload.length).putInt(compressed.length);
+                    out.write(entry.array(), 0, entry.position());
+                    out.write(compressed);
+
+                    offsets.put(hash, offset);
+                    if (storage == Pack.DELTA) {
+                        depth++;
+                        stats.deltas++;
+                    } else {
+                        depth = 0;
+                    }
+                    stats.objects++;
+
+                    base = content;
+                    baseOffset = offset;
+                    offset += entry.position() + compressed.length;
+                }
+            }
+
+            // the trailer is not part of its own checksum
+            out.flush();
+            byte[] checksum = digest.digest();
+            ((DigestOutputStream) out).on(false);
+            out.write(checksum);
+            return checksum;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeIdx(Path tmpIdx, Map<String, Long> offsets) throws IOException {
+        List<String> hashes = new ArrayList<>(offsets.keySet());
+        Collections.sort(hashes); // lowercase hex sorts like the raw bytes
+        int hashLength = hashes.get(0).length() / 2;
+
+        int[] fanout = new int[256];
+        for (String hash : hashes) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpIdx), 64 * 1024))) {
+            out.write(Pack.IDX_MAGIC);
+            out.writeInt(Pack.VERSION);
+            out.writeInt(hashLength);
+            out.writeInt(hashes.size());
+            for (int n : fanout) {
+                out.writeInt(n);
+            }
+            for (String hash : hashes) {
+                out.write(HashUtils.fromHex(hash));
+            }
+            for (String hash : hashes) {
+                out.writeLong(offsets.get(hash));
+            }
+        }
+    }
+}
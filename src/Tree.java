@@ -0,0 +1,178 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// content-addressed directory listing stored next to the blobs in the object store
+// one line per child, sorted by name: "blob <hash> <name>" or "tree <hash> <name>"
+class Tree {
+    private final TreeMap<String, Tree> dirs = new TreeMap<>();
+    private final TreeMap<String, String> blobs = new TreeMap<>();
+
+    // paths are relative to the repository root and use '/' separators
+    static String write(Map<String, String> files) throws IOException, NoSuchAlgorithmException {
+        Tree root = new Tree();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Tree node = root;
+            String[] parts = file.getKey().split("/");
+            for (int i = 0; i < parts.length - 1; i++) {
+                node = node.dirs.computeIfAbsent(parts[i], k -> new Tree());
+            }
+            node.blobs.put(parts[parts.length - 1], file.getValue());
+        }
+        return root.write();
+    }
+
+    private String write() throws IOException, NoSuchAlgorithmException {
+        TreeMap<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, Tree> dir : dirs.entrySet()) {
+            lines.put(dir.getKey(), "tree " + dir.getValue().write() + " " + dir.getKey());
+        }
+        for (Map.Entry<String, String> blob : blobs.entrySet()) {
+            lines.put(blob.getKey(), "blob " + blob.getValue() + " " + blob.getKey());
+        }
+        return store(lines);
+    }
+
+    // the same trees as write(Map), but directories the index still has a cached hash for are
+    // neither rebuilt nor walked; every tree written is cached for the next commit
+    static String write(Index index) throws IOException, NoSuchAlgorithmException {
+        return write(index, "");
+    }
+
+    private static String write(Index index, String dir) throws IOException, NoSuchAlgorithmException {
+        String cached = index.cachedTree(dir);
+        if (cached != null) {
+            return cached;
+        }
+
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        TreeMap<String, String> lines = new TreeMap<>();
+        String path = index.ceilingPath(prefix);
+        while (path != null && path.startsWith(prefix)) {
+            String name = path.substring(prefix.length());
+            int slash = name.indexOf('/');
+            if (slash < 0) {
+                lines.put(name, "blob " + index.get(path).hash + " " + name);
+                path = index.higherPath(path);
+            } else {
+                name = name.substring(0, slash);
+                lines.put(name, "tree " + write(index, prefix + name) + " " + name);
+                path = index.higherPath(prefix + name + "/\uffff");
+            }
+        }
+
+        String hash = store(lines);
+        index.cacheTree(dir, hash);
+        return hash;
+    }
+
+    private static String store(TreeMap<String, String> lines) throws IOException, NoSuchAlgorithmException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines.values()) {
+            sb.append(line).append("\n");
+        }
+
+        return ObjectStore.local().writeBytes(ObjectStore.TREE, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static final class Entry {
+        final boolean isTree;
+        final String hash;
+        final String name;
+
+        Entry(boolean isTree, String hash, String name) {
+            this.isTree = isTree;
+            this.hash = hash;
+            this.name = name;
+        }
+    }
+
+    static List<Entry> read(String hash) throws IOException {
+        return parse(ObjectStore.local().readBytes(hash));
+    }
+
+    static List<Entry> parse(byte[] tree) {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : new String(tree, StandardCharsets.UTF_8).split("\n")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) {
+                continue;
+            }
+            entries.add(new Entry(parts[0].equals("tree"), parts[1], parts[2]));
+        }
+        return entries;
+    }
+
+    // hash of the blob or tree at path inside tree (either may be null), null when there is none;
+    // only the trees along the path are read
+    static String lookup(String tree, String path) throws IOException {
+        String hash = tree;
+        for (String name : path.split("/")) {
+            if (hash == null) {
+                return null;
+            }
+            String next = null;
+            for (Entry entry : read(hash)) {
+                if (entry.name.equals(name)) {
+                    next = entry.hash;
+                    break;
+                }
+            }
+            hash = next;
+        }
+        return hash;
+    }
+
+    // blobs that differ between two trees (either may be null), path -> {old hash, new hash}
+    // with null for a missing side; subtrees with equal hashes are skipped without being read
+    static TreeMap<String, String[]> changes(String oldTree, String newTree) throws IOException {
+        return changes(ObjectStore.local(), oldTree, newTree);
+    }
+
+    // changes() between trees in another repository's store
+    static TreeMap<String, String[]> changes(ObjectStore store, String oldTree, String newTree) throws IOException {
+        TreeMap<String, String[]> out = new TreeMap<>();
+        changes(store, oldTree, newTree, "", out);
+        return out;
+    }
+
+    private static void changes(ObjectStore store, String oldTree, String newTree, String dir,
+            TreeMap<String, String[]> out) throws IOException {
+        if (Objects.equals(oldTree, newTree)) {
+            return;
+        }
+        TreeMap<String, Entry[]> names = new TreeMap<>();
+        if (oldTree != null) {
+            for (Entry entry : parse(store.readBytes(oldTree))) {
+                names.computeIfAbsent(entry.name, k -> new Entry[2])[0] = entry;
+            }
+        }
+        if (newTree != null) {
+            for (Entry entry : parse(store.readBytes(newTree))) {
+                names.computeIfAbsent(entry.name, k -> new Entry[2])[1] = entry;
+            }
+        }
+
+        for (Map.Entry<String, Entry[]> name : names.entrySet()) {
+            String path = dir.isEmpty() ? name.getKey() : dir + "/" + name.getKey();
+            Entry before = name.getValue()[0];
+            Entry after = name.getValue()[1];
+
+            // a path can switch between file and directory, so both halves are handled
+            String oldSub = before != null && before.isTree ? before.hash : null;
+            String newSub = after != null && after.isTree ? after.hash : null;
+            if (oldSub != null || newSub != null) {
+                changes(store, oldSub, newSub, path, out);
+            }
+
+            String oldBlob = before != null && !before.isTree ? before.hash : null;
+            String newBlob = after != null && !after.isTree ? after.hash : null;
+            if (!Objects.equals(oldBlob, newBlob)) {
+                out.put(path, new String[]{oldBlob, newBlob});
+            }
+        }
+    }
+}
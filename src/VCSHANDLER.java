@@ -0,0 +1,713 @@
+package src;
+
+import errors.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import utils.*;
+
+class VCSHANDLER extends Helper {
+
+    public static void initRepository(String[] args) throws KiwiException {
+        File kiwiDir = new File(".kiwi");
+
+        String objectFormat = HashAlgorithm.SHA1.configName;
+        String statHash = "none";
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--object-format=")) {
+                objectFormat = args[i].substring("--object-format=".length());
+            } else if (args[i].startsWith("--stat-hash=")) {
+                statHash = args[i].substring("--stat-hash=".length());
+            } else {
+                throw new KiwiException("Usage: kiwi init [--object-format=sha1|sha256] [--stat-hash=none|xxh64]");
+            }
+        }
+        Config.apply(objectFormat, statHash);
+
+        try {
+            if (kiwiDir.exists()) {
+                throw new RepoAlreadyExistsException("Repository already initialized in this directory!");
+            }
+            if (!kiwiDir.mkdir()) {
+                throw new CommitException("Failed to create .kiwi directory!");
+            }
+
+            new File(".kiwi/objects").mkdirs();
+            new File(".kiwi/commits").mkdirs();
+            new File(".kiwi/index").mkdirs();
+
+            new File(".kiwi/HEAD").createNewFile();
+            Config.write(objectFormat, statHash);
+
+            System.out.println(Colors.GREEN + "Initialized KIWI repository" + Colors.RESET);
+
+        } catch (IOException e) {
+            throw new CommitException("Could not initialize repository: " + e.getMessage());
+        }
+    }
+
+    public static void add(String[] args) throws KiwiException {
+
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        List<String> params = new ArrayList<>(Arrays.asList(args));
+        int jobs = Jobs.extractJobs(params);
+
+        if (params.size() < 2) {
+            System.out.println(Colors.YELLOW + "Usage: kiwi add <filename> [more_files] OR kiwi add . [--jobs N]" + Colors.RESET);
+            return;
+        }
+
+        Index index = Index.load();
+        removeDeletedFilesFromIndex(index);
+
+        try {
+            if (params.get(1).equals(".")) {
+                addAllFilesRecursively(index, "", jobs);
+            } else {
+                for (int i = 1; i < params.size(); i++) {
+                    addSingleFile(index, params.get(i));
+                }
+            }
+        } finally {
+            // keep whatever was staged before a failing file, like the per-file writes used to
+            index.flush();
+        }
+        System.out.println(Colors.GREEN + "Staging completed." + Colors.RESET);
+    }
+
+    public static void status(String dir, Index index, int jobs,
+            ArrayList<String> deletedfiles, ArrayList<String> modified, ArrayList<String> untracked) {
+        List<String> files = listWorkingFiles(dir, index);
+        List<FileStatus> results = Jobs.map(jobs, files, path -> checkFile(index, path));
+
+        for (FileStatus result : results) {
+            switch (result.state) {
+                case "modified" ->
+                    modified.add(fileName(result.path));
+                case "untracked" ->
+                    untracked.add(fileName(result.path));
+                case "refreshed" -> {
+                    index.refresh(index.get(result.path), result.stat);
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    public static void status(String[] args) throws RepoNotInitializedException, IndexCorruptedException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        int jobs = Jobs.extractJobs(new ArrayList<>(Arrays.asList(args)));
+
+        if (!Index.INDEX_FILE.exists()) {
+            System.out.println(Colors.RED + "No files have been staged yet!" + Colors.RESET);
+            return;
+        }
+
+        Index index = Index.load();
+
+        ArrayList<String> modified = new ArrayList<>();
+        ArrayList<String> untracked = new ArrayList<>();
+        ArrayList<String> deletedfiles = new ArrayList<>();
+
+        for (IndexEntry entry : index.entries()) {
+            File f = new File(entry.path);
+            if (!f.exists()) {
+                deletedfiles.add(f.getName());
+            }
+        }
+
+        status("", index, jobs, deletedfiles, modified, untracked);
+        try {
+            index.flush();
+        } catch (IndexLockedException e) {
+            // only refreshed stat data is lost, the next status picks it up again
+        }
+
+        printStatus(System.out, deletedfiles, modified, untracked);
+    }
+
+    protected static void printStatus(PrintStream out,
+            List<String> deletedfiles, List<String> modified, List<String> untracked) {
+        out.println();
+        out.println(Colors.CYAN + "======================================" + Colors.RESET);
+
+        if (modified.isEmpty() && untracked.isEmpty()) {
+            out.println(Colors.GREEN + "ALL GOOD" + Colors.RESET);
+        }
+
+        if (!modified.isEmpty()) {
+            out.println(Colors.YELLOW + "\nModified files:" + Colors.RESET);
+            for (String file : modified) {
+                out.println(Colors.YELLOW + "   " + file + Colors.RESET);
+            }
+        }
+
+        if (!deletedfiles.isEmpty()) {
+            out.println(Colors.BLUE + "\nDeleted files:" + Colors.RESET);
+            for (String file : deletedfiles) {
+                out.println(Colors.BLUE + "   " + file + Colors.RESET);
+            }
+        }
+
+        if (!untracked.isEmpty()) {
+            out.println(Colors.RED + "\nUntracked files:" + Colors.RESET);
+            for (String file : untracked) {
+                out.println(Colors.RED + "   " + file + Colors.RESET);
+            }
+        }
+
+        out.println(Colors.CYAN + "======================================" + Colors.RESET);
+    }
+
+    
+    public static void commit(String[] args)
+            throws RepoNotInitializedException, CommitException {
+
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        if (args.length < 2) {
+            System.out.println(Colors.YELLOW + ("Commit message not provided!") + Colors.RESET);
+            return;
+        }
+
+        try {
+            migrateLegacyCommits();
+
+            String message = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+            Index index = Index.load();
+
+            String tree = Tree.write(index);
+            CommitObject commit = new CommitObject(tree, readHead(), CommitObject.defaultAuthor(),
+                    System.currentTimeMillis(), message);
+            String commitHash = commit.write();
+            CommitGraph.append(commitHash, commit);
+            writeHead(commitHash);
+            try {
+                index.flush();
+            } catch (IndexLockedException e) {
+                // the tree hashes are only a cache, the next commit computes them again
+            }
+
+            System.out.println(Colors.GREEN + "[" + commitHash.substring(0, 7) + "] " + message + Colors.RESET);
+        } catch (Exception e) {
+            throw new CommitException(e.getMessage());
+        }
+    }
+
+    public static void log(String[] args) throws KiwiException {
+        // kiwi log [-n <count>] [--] [<path>...]: only commits that changed one of the paths
+        int limit = Integer.MAX_VALUE;
+        List<String> paths = new ArrayList<>();
+        boolean wholeTree = false;
+        boolean onlyPaths = false;
+        for (int i = 1; i < args.length; i++) {
+            if (onlyPaths || !args[i].startsWith("-")) {
+                String path = toRepoPath(args[i]);
+                if (path == null) {
+                    throw new KiwiException("Path is outside the repository: " + args[i]);
+                }
+                wholeTree |= path.isEmpty();
+                paths.add(path);
+            } else if (args[i].equals("--")) {
+                onlyPaths = true;
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                limit = parseCount(args[++i]);
+            } else if (args[i].startsWith("-n")) {
+                limit = parseCount(args[i].substring(2));
+            } else {
+                throw new InvalidCommandException("log " + args[i]);
+            }
+        }
+        if (wholeTree) {
+            paths.clear();
+        }
+
+        try {
+            int migrated = migrateLegacyCommits();
+            if (migrated > 0) {
+                System.out.println(Colors.YELLOW + "Migrated " + migrated + " old commit snapshot(s)." + Colors.RESET);
+            }
+
+            String head = readHead();
+            if (head == null) {
+                System.out.println(Colors.YELLOW + "No commits yet!" + Colors.RESET);
+                return;
+            }
+
+            CommitGraph graph = CommitGraph.open();
+            try {
+                CommitGraph.Record record = graph.find(head);
+                if (record == null) {
+                    // a graph that lags behind HEAD is rebuilt once; HEAD still missing means it is bad
+                    graph.close();
+                    CommitGraph.rebuild();
+                    graph = CommitGraph.open();
+                    record = graph.find(head);
+                }
+                if (record == null) {
+                    System.out.println(Colors.RED + "[KIWI ERROR] HEAD points at unknown commit " + head + Colors.RESET);
+                    return;
+                }
+
+                System.out.println(Colors.CYAN + "\n ============ KIWI COMMIT HISTORY ============" + Colors.RESET);
+
+                // the graph gives the order, only the commits actually printed are opened; with paths,
+                // a commit is opened only when its filter cannot rule it out, and then shown only if
+                // the path's entry differs from the parent's
+                int shown = 0;
+                for (; record != null && shown < limit; record = graph.at(record.parent)) {
+                    Trace.count(Trace.COMMITS_WALKED, 1);
+                    if (!paths.isEmpty() && !graph.mayHaveChanged(record, paths)) {
+                        Trace.count(Trace.BLOOM_SKIPS, 1);
+                        continue;
+                    }
+                    CommitObject commit = CommitObject.read(record.hash);
+                    if (!paths.isEmpty() && !touches(commit, graph.at(record.parent), paths)) {
+                        continue;
+                    }
+                    shown++;
+
+                    System.out.println("Hash:     " + Colors.CYAN + record.hash + Colors.RESET);
+                    if (commit.author != null) {
+                        System.out.println("Author:   " + Colors.GREEN + commit.author + Colors.RESET);
+                    }
+                    System.out.println("Timestamp:    " + Colors.MAGENTA + formatTimestamp(record.timestamp) + Colors.RESET);
+                    System.out.println("Message:  " + Colors.YELLOW + commit.message + Colors.RESET);
+                    System.out.println(Colors.CYAN + " =============================================\n" + Colors.RESET);
+                }
+                if (shown == 0 && !paths.isEmpty()) {
+                    System.out.println(Colors.YELLOW + "No commits touch " + String.join(", ", paths) + Colors.RESET);
+                }
+            } finally {
+                graph.close();
+            }
+
+        } catch (Exception e) {
+            System.out.println(Colors.RED + "[KIWI ERROR] Could not read log: " + e.getMessage() + Colors.RESET);
+        }
+    }
+
+    // the -n count of log, a whole number of commits
+    private static int parseCount(String value) throws KiwiException {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // reported below with the value as given
+        }
+        throw new KiwiException("Invalid -n value '" + value + "', expected a number of commits.");
+    }
+
+    // whether commit changed any of paths, or anything under them, against its parent
+    private static boolean touches(CommitObject commit, CommitGraph.Record parent, List<String> paths)
+            throws IOException {
+        String parentTree = parent == null ? null : CommitObject.read(parent.hash).tree;
+        for (String path : paths) {
+            if (!Objects.equals(Tree.lookup(parentTree, path), Tree.lookup(commit.tree, path))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void diff(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        try {
+            // leading arguments that name commits are commits, the rest (or anything after --) are paths
+            List<String> commits = new ArrayList<>();
+            List<String> paths = new ArrayList<>();
+            boolean onlyPaths = false;
+            for (int i = 1; i < args.length; i++) {
+                String hash = onlyPaths || !paths.isEmpty() ? null : CommitObject.resolve(args[i]);
+                if (args[i].equals("--")) {
+                    onlyPaths = true;
+                } else if (hash != null) {
+                    commits.add(hash);
+                } else {
+                    String path = toRepoPath(args[i]);
+                    if (path == null) {
+                        throw new KiwiException("Path is outside the repository: " + args[i]);
+                    }
+                    paths.add(path);
+                }
+            }
+
+            Diff diff = new Diff(new BufferedOutputStream(System.out, 64 * 1024), paths);
+            if (commits.isEmpty()) {
+                Index index = Index.load();
+                diff.workingTree(index);
+                try {
+                    index.flush();
+                } catch (IndexLockedException e) {
+                    // only refreshed stat data is lost
+                }
+            } else if (commits.size() == 2) {
+                diff.commits(commits.get(0), commits.get(1));
+            } else {
+                throw new KiwiException("Usage: kiwi diff [<old-commit> <new-commit>] [--] [<path>...]");
+            }
+        } catch (IOException e) {
+            throw new KiwiException("Diff failed: " + e.getMessage(), e);
+        }
+    }
+
+    public static void checkout(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int jobs = Jobs.extractJobs(rest);
+        boolean force = rest.remove("--force") | rest.remove("-f");
+        if (rest.size() != 1) {
+            throw new CheckoutException("usage: kiwi checkout [--force] [--jobs N] <commit>");
+        }
+
+        try {
+            migrateLegacyCommits();
+            String target = CommitObject.resolve(rest.get(0));
+            if (target == null) {
+                throw new CheckoutException("unknown commit " + rest.get(0));
+            }
+            String head = readHead();
+            CommitObject commit = CommitObject.read(target);
+
+            Index index = Index.load();
+            Checkout.Stats stats = Checkout.commit(index, head == null ? null : CommitObject.read(head).tree,
+                    commit.tree, force, jobs);
+            index.flush();
+            writeHead(target);
+
+            System.out.println(Colors.GREEN + "HEAD is now at [" + target.substring(0, 7) + "] " + commit.message
+                    + " (" + stats.written + " written, " + stats.removed + " removed)" + Colors.RESET);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new CheckoutException(e.getMessage());
+        }
+    }
+
+    public static void restore(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int jobs = Jobs.extractJobs(rest);
+        String source = null;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < rest.size(); i++) {
+            if (rest.get(i).equals("--source") && i + 1 < rest.size()) {
+                source = rest.get(++i);
+            } else if (rest.get(i).startsWith("--source=")) {
+                source = rest.get(i).substring("--source=".length());
+            } else {
+                String path = toRepoPath(rest.get(i));
+                if (path == null) {
+                    throw new CheckoutException("path is outside the repository: " + rest.get(i));
+                }
+                paths.add(path);
+            }
+        }
+        if (paths.isEmpty()) {
+            throw new CheckoutException("usage: kiwi restore [--source <commit>] [--jobs N] <path>...");
+        }
+
+        try {
+            String sourceTree = null;
+            if (source != null) {
+                migrateLegacyCommits();
+                String hash = CommitObject.resolve(source);
+                if (hash == null) {
+                    throw new CheckoutException("unknown commit " + source);
+                }
+                sourceTree = CommitObject.read(hash).tree;
+            }
+
+            Index index = Index.load();
+            Checkout.Stats stats = Checkout.restore(index, sourceTree, paths, jobs);
+            index.flush();
+
+            System.out.println(Colors.GREEN + "Restored " + stats.written + " file(s)"
+                    + (stats.removed > 0 ? ", removed " + stats.removed : "") + "." + Colors.RESET);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new CheckoutException(e.getMessage());
+        }
+    }
+
+    public static void gc(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int jobs = Jobs.extractJobs(rest);
+        long grace = GarbageCollector.DEFAULT_GRACE_MILLIS;
+        for (int i = 0; i < rest.size(); i++) {
+            String value = null;
+            if (rest.get(i).equals("--grace") && i + 1 < rest.size()) {
+                value = rest.get(++i);
+            } else if (rest.get(i).startsWith("--grace=")) {
+                value = rest.get(i).substring("--grace=".length());
+            } else {
+                throw new InvalidCommandException("gc " + rest.get(i));
+            }
+            try {
+                grace = GarbageCollector.parseGrace(value);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                throw new KiwiException("Bad grace period '" + value + "', use e.g. 30m, 2h, 7d or now.");
+            }
+        }
+
+        try {
+            migrateLegacyCommits();
+            Index index = Index.load();
+            GarbageCollector.Stats stats = GarbageCollector.run(ObjectStore.local(), index, grace, jobs);
+            index.flush();
+
+            if (stats.repack != null) {
+                System.out.println(Colors.GREEN + "Rewrote packs without unreachable objects: " + stats.repack.objects
+                        + " objects kept." + Colors.RESET);
+            }
+            System.out.println(Colors.GREEN + "Removed " + stats.removed + " unreachable objects, reclaimed "
+                    + stats.bytesReclaimed + " bytes (" + stats.reachable + " reachable)." + Colors.RESET);
+            if (stats.kept > 0) {
+                System.out.println(Colors.YELLOW + "Kept " + stats.kept
+                        + " recent unreachable objects, they are still within the grace period." + Colors.RESET);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new KiwiException("gc failed: " + e.getMessage(), e);
+        }
+    }
+
+    public static void catFile(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+        if (args.length != 2 || !(args[1].equals("--batch") || args[1].equals("--batch-check"))) {
+            throw new KiwiException("Usage: kiwi cat-file (--batch | --batch-check) < <object ids>");
+        }
+        try {
+            CatFile.run(System.in, args[1].equals("--batch"));
+        } catch (IOException e) {
+            throw new KiwiException("cat-file failed: " + e.getMessage(), e);
+        }
+    }
+
+    // kiwi bundle create <file> [<basis-commit>...] | kiwi bundle apply [--jobs N] <file>
+    public static void bundle(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int jobs = Jobs.extractJobs(rest);
+        try {
+            migrateLegacyCommits();
+            Bundle.Repo local = Bundle.Repo.local();
+            if (rest.size() >= 2 && rest.get(0).equals("create")) {
+                String head = readHead();
+                if (head == null) {
+                    throw new TransferException("there are no commits to bundle.");
+                }
+                List<String> basis = new ArrayList<>();
+                for (String rev : rest.subList(2, rest.size())) {
+                    String hash = CommitObject.resolve(rev);
+                    if (hash == null) {
+                        throw new TransferException("unknown commit " + rev);
+                    }
+                    basis.add(hash);
+                }
+
+                Path file = Paths.get(rest.get(1));
+                Bundle.Stats stats = Bundle.create(local, head, Bundle.basis(local, basis), file);
+                if (stats.commits.isEmpty()) {
+                    Files.deleteIfExists(file);
+                    System.out.println(Colors.YELLOW + "Nothing to bundle, the basis already has HEAD." + Colors.RESET);
+                    return;
+                }
+                System.out.println(Colors.GREEN + "Wrote " + stats.commits.size() + " commit(s) and " + stats.objects
+                        + " object(s) to " + file + ", " + stats.bytes + " bytes" + Colors.RESET);
+            } else if (rest.size() == 2 && rest.get(0).equals("apply")) {
+                Bundle.Stats stats = Bundle.apply(local, Paths.get(rest.get(1)));
+                System.out.println(Colors.GREEN + "Received " + stats.commits.size() + " commit(s) and " + stats.objects
+                        + " object(s)." + Colors.RESET);
+                fastForward(stats, jobs);
+            } else {
+                throw new KiwiException("Usage: kiwi bundle create <file> [<basis-commit>...] | kiwi bundle apply <file>");
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new TransferException(e.getMessage());
+        }
+    }
+
+    // kiwi push <path-to-other-repository>: sends what it lacks and moves its HEAD forward
+    public static void push(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+        if (args.length != 2) {
+            throw new KiwiException("Usage: kiwi push <path-to-other-repository>");
+        }
+
+        try {
+            migrateLegacyCommits();
+            Bundle.Repo local = Bundle.Repo.local();
+            Bundle.Repo remote = Bundle.Repo.open(args[1]);
+            String head = readHead();
+            String remoteHead = remote.head();
+            if (head == null) {
+                throw new TransferException("there are no commits to push.");
+            }
+            if (remote.isAncestor(head, remoteHead)) {
+                System.out.println(Colors.YELLOW + "Everything up to date." + Colors.RESET);
+                return;
+            }
+            if (!local.isAncestor(remoteHead, head)) {
+                throw new TransferException(args[1] + " has commits this repository does not, pull them first.");
+            }
+
+            Bundle.Stats stats;
+            Path tmp = ObjectStore.newTempFile(remote.kiwi.toPath());
+            try {
+                stats = Bundle.create(local, head, Bundle.of(remote), tmp);
+                Bundle.apply(remote, tmp);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            // the other side's log and path filters cover the new commits right away, as after a commit there
+            for (String hash : stats.commits) {
+                CommitGraph.append(remote.kiwi, remote.store, hash, remote.commit(hash));
+            }
+
+            String pushed = "Pushed " + stats.commits.size() + " commit(s) and " + stats.objects + " object(s) to "
+                    + args[1] + ", " + stats.bytes + " bytes";
+            // like checkout, moving the HEAD of a checked-out repository has to update its files
+            if (remoteHead != null && remote.hasWorkingTree()) {
+                if (!stats.commits.isEmpty()) {
+                    System.out.println(Colors.GREEN + pushed + Colors.RESET);
+                }
+                System.out.println(Colors.YELLOW + args[1] + " has a working tree, its HEAD stays at "
+                        + remoteHead.substring(0, 7) + ". Run 'kiwi checkout " + head.substring(0, 7)
+                        + "' there to move it." + Colors.RESET);
+                return;
+            }
+            remote.writeHead(head);
+            System.out.println(Colors.GREEN + pushed + Colors.RESET);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new TransferException(e.getMessage());
+        }
+    }
+
+    // kiwi pull [--jobs N] <path-to-other-repository>: fetches what is missing here and fast-forwards
+    public static void pull(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int jobs = Jobs.extractJobs(rest);
+        if (rest.size() != 1) {
+            throw new KiwiException("Usage: kiwi pull [--jobs N] <path-to-other-repository>");
+        }
+
+        try {
+            migrateLegacyCommits();
+            Bundle.Repo local = Bundle.Repo.local();
+            Bundle.Repo remote = Bundle.Repo.open(rest.get(0));
+            String remoteHead = remote.head();
+            if (remoteHead == null) {
+                System.out.println(Colors.YELLOW + rest.get(0) + " has no commits yet." + Colors.RESET);
+                return;
+            }
+
+            Bundle.Stats stats;
+            Path tmp = ObjectStore.newTempFile(local.kiwi.toPath());
+            try {
+                Bundle.Stats sent = Bundle.create(remote, remoteHead, Bundle.of(local), tmp);
+                stats = Bundle.apply(local, tmp);
+                stats.bytes = sent.bytes;
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            if (!stats.commits.isEmpty()) {
+                System.out.println(Colors.GREEN + "Fetched " + stats.commits.size() + " commit(s) and " + stats.objects
+                        + " object(s), " + stats.bytes + " bytes" + Colors.RESET);
+            }
+            fastForward(stats, jobs);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new TransferException(e.getMessage());
+        }
+    }
+
+    // records the commits that arrived in the commit graph, then moves HEAD and the working tree to
+    // the bundle's head when that only adds commits on top of the current one
+    private static void fastForward(Bundle.Stats stats, int jobs)
+            throws KiwiException, IOException, NoSuchAlgorithmException {
+        for (String hash : stats.commits) {
+            CommitGraph.append(hash, CommitObject.read(hash));
+        }
+        Bundle.Repo local = Bundle.Repo.local();
+        String head = readHead();
+        String target = stats.head.substring(0, 7);
+        if (local.isAncestor(stats.head, head)) {
+            System.out.println(Colors.YELLOW + "Already up to date." + Colors.RESET);
+            return;
+        }
+        if (!local.isAncestor(head, stats.head)) {
+            throw new TransferException("HEAD and " + target + " have diverged and kiwi cannot merge them. "
+                    + "The commits were kept, 'kiwi checkout " + target + "' switches to them.");
+        }
+
+        CommitObject commit = CommitObject.read(stats.head);
+        Index index = Index.load();
+        Checkout.Stats moved = Checkout.commit(index, head == null ? null : CommitObject.read(head).tree,
+                commit.tree, false, jobs);
+        index.flush();
+        writeHead(stats.head);
+        System.out.println(Colors.GREEN + "HEAD is now at [" + target + "] " + commit.message + " ("
+                + moved.written + " written, " + moved.removed + " removed)" + Colors.RESET);
+    }
+
+    public static void daemon(String[] args) throws KiwiException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+        try {
+            Daemon.run(args);
+        } catch (IOException e) {
+            throw new KiwiException("Daemon failed: " + e.getMessage(), e);
+        }
+    }
+
+    public static void repack() throws RepoNotInitializedException, ObjectWriteException, IndexCorruptedException {
+        if (!new File(".kiwi").exists()) {
+            throw new RepoNotInitializedException();
+        }
+
+        try {
+            PackWriter.Stats stats = PackWriter.repack(ObjectStore.local(), Index.load().entries());
+            if (stats.objects == 0) {
+                System.out.println(Colors.YELLOW + "Nothing to pack." + Colors.RESET);
+                return;
+            }
+            System.out.println(Colors.GREEN + "Packed " + stats.objects + " objects (" + stats.deltas + " deltas) into "
+                    + stats.name + ".pack, " + stats.packBytes + " bytes" + Colors.RESET);
+            System.out.println(Colors.GREEN + "Removed " + stats.removedLoose + " loose objects." + Colors.RESET);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new ObjectWriteException("pack", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+
+// set of strings that answers "definitely not" or "maybe". 10 bits and 7 probes per key keep
+// false positives near 1%; the probes come from one XXH64 split into two halves (double hashing).
+public final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private final byte[] bits;
+
+    // room for about keys entries, in whole 64-bit words
+    public BloomFilter(int keys) {
+        int words = Math.max(1, (keys * BITS_PER_KEY + 63) / 64);
+        this.bits = new byte[words * 8];
+    }
+
+    private BloomFilter(byte[] bits) {
+        this.bits = bits;
+    }
+
+    // a filter serialized by toBytes()
+    public static BloomFilter fromBytes(byte[] bits) {
+        if (bits.length == 0) {
+            throw new IllegalArgumentException("empty bloom filter");
+        }
+        return new BloomFilter(bits);
+    }
+
+    public byte[] toBytes() {
+        return bits;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        int size = bits.length * 8;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = probe(hash, i, size);
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int size = bits.length * 8;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = probe(hash, i, size);
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return XXHash64.hash(bytes, 0, bytes.length);
+    }
+
+    private static int probe(long hash, int i, int size) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return Integer.remainderUnsigned(h1 + i * h2, size);
+    }
+}
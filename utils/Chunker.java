@@ -0,0 +1,56 @@
+package utils;
+
+// content-defined chunk boundaries (FastCDC): a gear rolling hash over the data, cut where
+// its top bits are all zero. Boundaries depend only on nearby bytes, so an edit moves at most
+// the cut points around it and the chunks elsewhere stay identical between versions.
+//
+// normalized chunking: a stricter mask before the average size and a looser one after it
+// keeps chunk sizes close to AVG_SIZE
+public class Chunker {
+    public static final int MIN_SIZE = 256 * 1024;
+    public static final int AVG_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // AVG_SIZE is 2^20: two bits more before it, two bits fewer after it
+    private static final long MASK_SMALL = -1L << (64 - 22);
+    private static final long MASK_LARGE = -1L << (64 - 18);
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // fixed seed, changing it would move every cut point and break sharing with old chunks
+        long seed = 0x4b495749L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    // length of the chunk starting at data[offset]; length is what is available, which has to
+    // be at least MAX_SIZE unless the data ends there
+    public static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int end = Math.min(length, MAX_SIZE);
+        int normal = Math.min(end, AVG_SIZE);
+
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -1,19 +1,11 @@
 package utils;
 
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 
 public class CommitHashUtils {
+    // the same UTF-8 bytes CommitObject.write stores and Bundle checks on arrival
     public static String generateCommitHash(String data) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-
-        byte[] hashBytes = digest.digest(data.getBytes());
-
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hashBytes) {
-            sb.append(String.format("%02x", b));
-        }
-
-        return sb.toString();
+        return HashUtils.toHex(HashUtils.newDigest().digest(data.getBytes(StandardCharsets.UTF_8)));
     }
 }
@@ -0,0 +1,191 @@
+package utils;
+
+import java.io.*;
+
+// copy/insert delta between two byte arrays
+// layout: varint baseLength, varint targetLength, then a list of ops:
+//   0x00 varint length <bytes>       insert literal bytes
+//   0x01 varint offset varint length copy a range of the base
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final byte INSERT = 0;
+    private static final byte COPY = 1;
+
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, target.length / 4));
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        if (base.length < BLOCK || target.length < BLOCK) {
+            writeInsert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        // open-addressing table: block hash -> offset of the first base block with that hash
+        int blocks = base.length / BLOCK;
+        int size = Integer.highestOneBit(Math.max(16, blocks * 2)) << 1;
+        int mask = size - 1;
+        int[] keys = new int[size];
+        int[] offsets = new int[size];
+        java.util.Arrays.fill(offsets, -1);
+        for (int b = 0; b < blocks; b++) {
+            int offset = b * BLOCK;
+            int h = hash(base, offset);
+            int slot = mix(h) & mask;
+            while (offsets[slot] != -1 && keys[slot] != h) {
+                slot = (slot + 1) & mask;
+            }
+            if (offsets[slot] == -1) {
+                keys[slot] = h;
+                offsets[slot] = offset;
+            }
+        }
+
+        int pow = 1;
+        for (int k = 0; k < BLOCK - 1; k++) {
+            pow *= PRIME;
+        }
+
+        int insertStart = 0;
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            int match = lookup(keys, offsets, mask, h);
+            if (match >= 0 && regionMatches(base, match, target, i, BLOCK)) {
+                int start = i;
+                int baseStart = match;
+                // grow the match backwards into the pending insert, then forwards
+                while (start > insertStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                    start--;
+                    baseStart--;
+                }
+                int end = i + BLOCK;
+                int baseEnd = match + BLOCK;
+                while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                    end++;
+                    baseEnd++;
+                }
+
+                writeInsert(out, target, insertStart, start - insertStart);
+                out.write(COPY);
+                writeVarint(out, baseStart);
+                writeVarint(out, end - start);
+
+                i = end;
+                insertStart = end;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+                continue;
+            }
+
+            if (i + BLOCK < target.length) {
+                h = (h - (target[i] & 0xff) * pow) * PRIME + (target[i + BLOCK] & 0xff);
+            }
+            i++;
+        }
+
+        writeInsert(out, target, insertStart, target.length - insertStart);
+        return out.toByteArray();
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        int[] pos = {0};
+        long baseLength = readVarint(delta, pos);
+        long targetLength = readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw new IOException("delta base length mismatch");
+        }
+
+        byte[] target = new byte[(int) targetLength];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            byte op = delta[pos[0]++];
+            if (op == INSERT) {
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, written, length);
+                pos[0] += length;
+                written += length;
+            } else if (op == COPY) {
+                int offset = (int) readVarint(delta, pos);
+                int length = (int) readVarint(delta, pos);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else {
+                throw new IOException("bad delta op " + op);
+            }
+        }
+
+        if (written != target.length) {
+            throw new IOException("delta produced " + written + " of " + target.length + " bytes");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            h = h * PRIME + (data[offset + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private static int lookup(int[] keys, int[] offsets, int mask, int h) {
+        int slot = mix(h) & mask;
+        while (offsets[slot] != -1) {
+            if (keys[slot] == h) {
+                return offsets[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        return java.util.Arrays.equals(a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        out.write(INSERT);
+        writeVarint(out, length);
+        out.write(data, offset, length);
+    }
+
+    public static void writeVarint(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static long readVarint(byte[] data, int[] pos) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= data.length) {
+                throw new IOException("truncated varint");
+            }
+            int b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package utils;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+public class FileStat {
+    // size used for entries whose stat data must not be trusted (forces a rehash)
+    public static final long SMUDGED = -1;
+
+    public final long size;
+    public final long mtimeNanos;
+    public final long fileKey;
+
+    public FileStat(long size, long mtimeNanos, long fileKey) {
+        this.size = size;
+        this.mtimeNanos = mtimeNanos;
+        this.fileKey = fileKey;
+    }
+
+    public static FileStat of(File file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object key = attrs.fileKey(); // dev + inode on unix, null on windows
+        return new FileStat(attrs.size(),
+                attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                key == null ? 0 : key.hashCode());
+    }
+
+    public boolean isSmudged() {
+        return size == SMUDGED;
+    }
+
+    public FileStat smudged() {
+        return new FileStat(SMUDGED, mtimeNanos, fileKey);
+    }
+
+    public boolean matches(FileStat other) {
+        return other != null && !isSmudged()
+                && size == other.size
+                && mtimeNanos == other.mtimeNanos
+                && fileKey == other.fileKey;
+    }
+}
@@ -0,0 +1,35 @@
+package utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// object id algorithms a repository can be created with; the choice is recorded in
+// .kiwi/config as "objectformat" and every object, tree and commit hash uses it
+public enum HashAlgorithm {
+    SHA1("sha1", "SHA-1", 20),
+    SHA256("sha256", "SHA-256", 32);
+
+    public final String configName;
+    public final int length; // raw bytes, twice that in hex
+    private final String jcaName;
+
+    HashAlgorithm(String configName, String jcaName, int length) {
+        this.configName = configName;
+        this.jcaName = jcaName;
+        this.length = length;
+    }
+
+    public MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(jcaName);
+    }
+
+    // null for a name no version of kiwi has used
+    public static HashAlgorithm forName(String name) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.configName.equals(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+}
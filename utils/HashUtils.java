@@ -1,21 +1,115 @@
 package utils;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 
 public class HashUtils {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] FROM_HEX = new byte[128];
+
+    static {
+        java.util.Arrays.fill(FROM_HEX, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            FROM_HEX[HEX[i]] = (byte) i;
+            FROM_HEX[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+    }
+
+    // one direct buffer per thread, reused for every file that thread reads
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static volatile HashAlgorithm algorithm = HashAlgorithm.SHA1;
+
+    // set once at startup from the repository's objectformat
+    public static void use(HashAlgorithm repoAlgorithm) {
+        algorithm = repoAlgorithm;
+    }
+
+    public static HashAlgorithm algorithm() {
+        return algorithm;
+    }
+
+    // a digest for object ids in the repository's format
+    public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return algorithm.newDigest();
+    }
+
     public static String getFileHash(File file) throws IOException, NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-1");
-        try (InputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[1024];
+        MessageDigest digest = newDigest();
+        long total;
+        Trace.Span span = Trace.span(Trace.HASH);
+        try {
+            total = digest(file, digest, null);
+        } finally {
+            span.close();
+        }
+        Trace.count(Trace.FILES_HASHED, 1);
+        Trace.count(Trace.BYTES_READ, total);
+        return toHex(digest.digest());
+    }
+
+    // XXH64 of the file's content, for the stat cache
+    public static long getFastHash(File file) throws IOException {
+        XXHash64 fast = new XXHash64();
+        long total;
+        Trace.Span span = Trace.span(Trace.HASH);
+        try {
+            total = digest(file, null, fast);
+        } finally {
+            span.close();
+        }
+        Trace.count(Trace.FILES_HASHED, 1);
+        Trace.count(Trace.BYTES_READ, total);
+        return fast.digest();
+    }
+
+    // feeds the whole file to digest and fast (either may be null), returns the bytes read
+    public static long digest(File file, MessageDigest digest, XXHash64 fast) throws IOException {
+        ByteBuffer buffer = BUFFERS.get();
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
             int n;
-            while ((n = fis.read(buffer)) != -1) {
-                digest.update(buffer, 0, n);
+            while ((n = channel.read(buffer)) != -1) {
+                buffer.flip();
+                if (fast != null) {
+                    fast.update(buffer.duplicate());
+                }
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                buffer.clear();
+                total += n;
             }
         }
-        byte[] hashBytes = digest.digest();
+        return total;
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (byte b : hashBytes) sb.append(String.format("%02x", b));
-        return sb.toString();
+    public static String toHex(byte[] hashBytes) {
+        char[] out = new char[hashBytes.length * 2];
+        for (int i = 0; i < hashBytes.length; i++) {
+            out[i * 2] = HEX[(hashBytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[hashBytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (byte) (digit(hex.charAt(i * 2)) << 4 | digit(hex.charAt(i * 2 + 1)));
+        }
+        return out;
+    }
+
+    private static int digit(char c) {
+        int value = c < FROM_HEX.length ? FROM_HEX[c] : -1;
+        if (value < 0) {
+            throw new NumberFormatException("not a hex digit: " + c);
+        }
+        return value;
     }
 }
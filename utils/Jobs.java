@@ -0,0 +1,89 @@
+package utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Jobs {
+
+    public interface Task<T, R, E extends Exception> {
+        R run(T item) throws E;
+    }
+
+    // strips "--jobs N" / "--jobs=N" from args; absent means 1, 0 means one per core.
+    // "-j" or "--jobs" not followed by a count also means one per core, and whatever follows
+    // stays in args ("kiwi add -j ." still adds ".")
+    public static int extractJobs(List<String> args) {
+        int jobs = 1;
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            String value = null;
+            if (arg.equals("--jobs") || arg.equals("-j")) {
+                args.remove(i);
+                value = i < args.size() && isCount(args.get(i)) ? args.remove(i) : "0";
+                i--;
+            } else if (arg.startsWith("--jobs=")) {
+                args.remove(i);
+                value = arg.substring("--jobs=".length());
+                i--;
+            }
+            if (value != null) {
+                try {
+                    jobs = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+            }
+        }
+        return jobs <= 0 ? Runtime.getRuntime().availableProcessors() : jobs;
+    }
+
+    private static boolean isCount(String arg) {
+        if (arg.isEmpty() || arg.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < arg.length(); i++) {
+            if (!Character.isDigit(arg.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // runs task over items on at most `jobs` threads; results keep the order of items
+    @SuppressWarnings("unchecked")
+    public static <T, R, E extends Exception> List<R> map(int jobs, List<T> items, Task<T, R, E> task) throws E {
+        List<R> results = new ArrayList<>(items.size());
+        if (jobs <= 1 || items.size() < 2) {
+            for (T item : items) {
+                results.add(task.run(item));
+            }
+            return results;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(jobs, items.size()));
+        try {
+            List<ForkJoinTask<R>> pending = new ArrayList<>(items.size());
+            for (T item : items) {
+                pending.add(pool.submit(() -> task.run(item)));
+            }
+            for (ForkJoinTask<R> job : pending) {
+                results.add(job.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for workers");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
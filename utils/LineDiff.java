@@ -0,0 +1,412 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+// unified line diff over two byte buffers (usually memory-mapped files)
+//
+// the common byte prefix and suffix are skipped before any line is looked at, so a small edit
+// in a huge file only indexes the lines around it; the rest goes through Myers' linear-space
+// divide and conquer, which gives up on minimality past a cost limit like xdiff does
+public class LineDiff {
+    public static final int CONTEXT = 3;
+
+    // same heuristic as git: a NUL byte near the start means binary
+    private static final int BINARY_PROBE = 8000;
+    private static final int MIN_COST = 256;
+    private static final int CHUNK = 64 * 1024;
+
+    public static boolean isBinary(ByteBuffer data) {
+        int end = Math.min(data.limit(), BINARY_PROBE);
+        for (int i = 0; i < end; i++) {
+            if (data.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // writes the hunks turning a into b, returns false when they are equal
+    public static boolean write(ByteBuffer a, ByteBuffer b, OutputStream out) throws IOException {
+        int lengthA = a.limit();
+        int lengthB = b.limit();
+        int first = a.duplicate().position(0).mismatch(b.duplicate().position(0));
+        if (first < 0) {
+            return false;
+        }
+
+        int start = lineStart(a, first);
+        int tail = commonSuffix(a, b, Math.min(lengthA, lengthB) - start);
+        // the shared suffix has to start on a line in both files
+        while (tail > 0 && !(atLineStart(a, lengthA - tail) && atLineStart(b, lengthB - tail))) {
+            tail--;
+        }
+
+        // keep a few identical lines on each side for context
+        int from = start;
+        for (int i = 0; i < CONTEXT && from > 0; i++) {
+            from = lineStart(a, from - 1);
+        }
+        int toA = lengthA - tail;
+        for (int i = 0; i < CONTEXT && toA < lengthA; i++) {
+            toA = lineEnd(a, toA);
+        }
+        int toB = lengthB - (lengthA - toA);
+
+        Lines linesA = new Lines(a, from, toA);
+        Lines linesB = new Lines(b, from, toB);
+        boolean[] changedA = new boolean[linesA.count];
+        boolean[] changedB = new boolean[linesB.count];
+        compare(linesA, linesB, changedA, changedB);
+
+        writeHunks(linesA, linesB, changedA, changedB, countLines(a, from), out);
+        return true;
+    }
+
+    private static boolean atLineStart(ByteBuffer data, int position) {
+        return position == 0 || data.get(position - 1) == '\n';
+    }
+
+    private static int lineStart(ByteBuffer data, int position) {
+        while (position > 0 && data.get(position - 1) != '\n') {
+            position--;
+        }
+        return position;
+    }
+
+    private static int lineEnd(ByteBuffer data, int position) {
+        int limit = data.limit();
+        while (position < limit && data.get(position++) != '\n') {
+        }
+        return position;
+    }
+
+    // shared bytes at the end of both buffers, compared a chunk at a time
+    private static int commonSuffix(ByteBuffer a, ByteBuffer b, int max) {
+        int tail = 0;
+        while (tail < max) {
+            int n = Math.min(CHUNK, max - tail);
+            ByteBuffer sliceA = a.duplicate().position(a.limit() - tail - n).limit(a.limit() - tail);
+            ByteBuffer sliceB = b.duplicate().position(b.limit() - tail - n).limit(b.limit() - tail);
+            if (sliceA.mismatch(sliceB) < 0) {
+                tail += n;
+                continue;
+            }
+            for (int i = 1; i <= n; i++) {
+                if (a.get(a.limit() - tail - i) != b.get(b.limit() - tail - i)) {
+                    return tail + i - 1;
+                }
+            }
+        }
+        return tail;
+    }
+
+    private static int countLines(ByteBuffer data, int end) {
+        int lines = 0;
+        byte[] chunk = new byte[CHUNK];
+        for (int position = 0; position < end; position += CHUNK) {
+            int n = Math.min(CHUNK, end - position);
+            data.get(position, chunk, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] == '\n') {
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    // line boundaries and hashes for one region of a buffer
+    private static final class Lines {
+        final ByteBuffer data;
+        int[] starts = new int[64]; // count + 1 entries, the last one is the region end
+        int[] hashes = new int[64];
+        int count;
+
+        Lines(ByteBuffer data, int from, int to) {
+            this.data = data;
+            int position = from;
+            while (position < to) {
+                if (count + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                starts[count] = position;
+                int hash = 0;
+                byte c;
+                do {
+                    c = data.get(position++);
+                    hash = hash * 31 + c;
+                } while (c != '\n' && position < to);
+                hashes[count++] = hash;
+            }
+            starts[count] = to;
+        }
+
+        int length(int line) {
+            return starts[line + 1] - starts[line];
+        }
+    }
+
+    private static boolean equal(Lines a, int i, Lines b, int j) {
+        if (a.hashes[i] != b.hashes[j] || a.length(i) != b.length(j)) {
+            return false;
+        }
+        int p = a.starts[i];
+        int q = b.starts[j];
+        for (int n = a.length(i); n > 0; n--) {
+            if (a.data.get(p++) != b.data.get(q++)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // marks the lines of a that were removed and the lines of b that were added
+    private static void compare(Lines a, Lines b, boolean[] changedA, boolean[] changedB) {
+        int n = a.count;
+        int m = b.count;
+        // diagonals k = x - y run from -m to n, plus one sentinel on each side
+        int[] forward = new int[n + m + 3];
+        int[] backward = new int[n + m + 3];
+        int offset = m + 1;
+        int maxCost = Math.max(MIN_COST, (int) Math.sqrt(n + m + 3));
+
+        // explicit stack, a long run of edits would otherwise recurse too deep
+        Deque<int[]> pending = new ArrayDeque<>();
+        pending.push(new int[]{0, n, 0, m});
+        while (!pending.isEmpty()) {
+            int[] box = pending.pop();
+            int aLo = box[0], aHi = box[1], bLo = box[2], bHi = box[3];
+
+            while (aLo < aHi && bLo < bHi && equal(a, aLo, b, bLo)) {
+                aLo++;
+                bLo++;
+            }
+            while (aLo < aHi && bLo < bHi && equal(a, aHi - 1, b, bHi - 1)) {
+                aHi--;
+                bHi--;
+            }
+            if (aLo == aHi) {
+                for (int j = bLo; j < bHi; j++) {
+                    changedB[j] = true;
+                }
+                continue;
+            }
+            if (bLo == bHi) {
+                for (int i = aLo; i < aHi; i++) {
+                    changedA[i] = true;
+                }
+                continue;
+            }
+
+            int[] split = split(a, b, aLo, aHi, bLo, bHi, forward, backward, offset, maxCost);
+            pending.push(new int[]{split[0], aHi, split[1], bHi});
+            pending.push(new int[]{aLo, split[0], bLo, split[1]});
+        }
+    }
+
+    // a point on an optimal (or, past maxCost, a good enough) edit path through the box
+    private static int[] split(Lines a, Lines b, int aLo, int aHi, int bLo, int bHi,
+            int[] forward, int[] backward, int offset, int maxCost) {
+        int dMin = aLo - bHi;
+        int dMax = aHi - bLo;
+        int fMid = aLo - bLo;
+        int bMid = aHi - bHi;
+        int fMin = fMid, fMax = fMid, bMin = bMid, bMax = bMid;
+        boolean odd = ((fMid - bMid) & 1) != 0;
+        forward[fMid + offset] = aLo;
+        backward[bMid + offset] = aHi;
+
+        for (int cost = 1;; cost++) {
+            if (fMin > dMin) {
+                forward[--fMin - 1 + offset] = -1;
+            } else {
+                ++fMin;
+            }
+            if (fMax < dMax) {
+                forward[++fMax + 1 + offset] = -1;
+            } else {
+                --fMax;
+            }
+            for (int d = fMax; d >= fMin; d -= 2) {
+                int x = forward[d - 1 + offset] >= forward[d + 1 + offset]
+                        ? forward[d - 1 + offset] + 1 : forward[d + 1 + offset];
+                int y = x - d;
+                while (x < aHi && y < bHi && equal(a, x, b, y)) {
+                    x++;
+                    y++;
+                }
+                forward[d + offset] = x;
+                if (odd && bMin <= d && d <= bMax && backward[d + offset] <= x) {
+                    return new int[]{x, y};
+                }
+            }
+
+            if (bMin > dMin) {
+                backward[--bMin - 1 + offset] = Integer.MAX_VALUE;
+            } else {
+                ++bMin;
+            }
+            if (bMax < dMax) {
+                backward[++bMax + 1 + offset] = Integer.MAX_VALUE;
+            } else {
+                --bMax;
+            }
+            for (int d = bMax; d >= bMin; d -= 2) {
+                int x = backward[d - 1 + offset] < backward[d + 1 + offset]
+                        ? backward[d - 1 + offset] : backward[d + 1 + offset] - 1;
+                int y = x - d;
+                while (x > aLo && y > bLo && equal(a, x - 1, b, y - 1)) {
+                    x--;
+                    y--;
+                }
+                backward[d + offset] = x;
+                if (!odd && fMin <= d && d <= fMax && x <= forward[d + offset]) {
+                    return new int[]{x, y};
+                }
+            }
+
+            if (cost >= maxCost) {
+                return furthest(aLo, aHi, bLo, bHi, forward, backward, offset, fMin, fMax, bMin, bMax);
+            }
+        }
+    }
+
+    // too expensive to be exact: split where either search got furthest
+    private static int[] furthest(int aLo, int aHi, int bLo, int bHi, int[] forward, int[] backward, int offset,
+            int fMin, int fMax, int bMin, int bMax) {
+        int fBest = -1, fX = aLo;
+        for (int d = fMax; d >= fMin; d -= 2) {
+            int x = Math.min(forward[d + offset], aHi);
+            int y = x - d;
+            if (y > bHi) {
+                x = bHi + d;
+                y = bHi;
+            }
+            if (x + y > fBest) {
+                fBest = x + y;
+                fX = x;
+            }
+        }
+        int bBest = Integer.MAX_VALUE, bX = aHi;
+        for (int d = bMax; d >= bMin; d -= 2) {
+            int x = Math.max(backward[d + offset], aLo);
+            int y = x - d;
+            if (y < bLo) {
+                x = bLo + d;
+                y = bLo;
+            }
+            if (x + y < bBest) {
+                bBest = x + y;
+                bX = x;
+            }
+        }
+
+        int[] point = (aHi + bHi) - bBest < fBest - (aLo + bLo)
+                ? new int[]{fX, fBest - fX} : new int[]{bX, bBest - bX};
+        if ((point[0] == aLo && point[1] == bLo) || (point[0] == aHi && point[1] == bHi)) {
+            point = new int[]{(aLo + aHi) >>> 1, (bLo + bHi) >>> 1};
+        }
+        return point;
+    }
+
+    private static void writeHunks(Lines a, Lines b, boolean[] changedA, boolean[] changedB, int base,
+            OutputStream out) throws IOException {
+        // runs of changes as {aStart, aEnd, bStart, bEnd}
+        List<int[]> changes = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.count || j < b.count) {
+            if ((i < a.count && changedA[i]) || (j < b.count && changedB[j])) {
+                int si = i, sj = j;
+                while (i < a.count && changedA[i]) {
+                    i++;
+                }
+                while (j < b.count && changedB[j]) {
+                    j++;
+                }
+                changes.add(new int[]{si, i, sj, j});
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        byte[] scratch = new byte[256];
+        int next = 0;
+        while (next < changes.size()) {
+            // changes closer than two contexts apart share a hunk
+            int last = next;
+            while (last + 1 < changes.size() && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last++;
+            }
+            int[] head = changes.get(next);
+            int[] end = changes.get(last);
+            int aFrom = Math.max(0, head[0] - CONTEXT);
+            int bFrom = head[2] - (head[0] - aFrom);
+            int aTo = Math.min(a.count, end[1] + CONTEXT);
+            int bTo = end[3] + (aTo - end[1]);
+
+            write(out, Colors.CYAN + "@@ -" + range(base + aFrom, aTo - aFrom)
+                    + " +" + range(base + bFrom, bTo - bFrom) + " @@" + Colors.RESET + "\n");
+
+            int x = aFrom;
+            for (int c = next; c <= last; c++) {
+                int[] change = changes.get(c);
+                for (; x < change[0]; x++) {
+                    scratch = line(out, a, x, ' ', "", scratch);
+                }
+                for (; x < change[1]; x++) {
+                    scratch = line(out, a, x, '-', Colors.RED, scratch);
+                }
+                for (int y = change[2]; y < change[3]; y++) {
+                    scratch = line(out, b, y, '+', Colors.GREEN, scratch);
+                }
+            }
+            for (; x < aTo; x++) {
+                scratch = line(out, a, x, ' ', "", scratch);
+            }
+            next = last + 1;
+        }
+    }
+
+    private static String range(int start, int count) {
+        if (count == 0) {
+            return start + ",0";
+        }
+        return count == 1 ? String.valueOf(start + 1) : (start + 1) + "," + count;
+    }
+
+    private static byte[] line(OutputStream out, Lines lines, int line, char marker, String color, byte[] scratch)
+            throws IOException {
+        int start = lines.starts[line];
+        int length = lines.length(line);
+        boolean newline = length > 0 && lines.data.get(start + length - 1) == '\n';
+        if (newline) {
+            length--;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        lines.data.get(start, scratch, 0, length);
+
+        write(out, color + marker);
+        out.write(scratch, 0, length);
+        write(out, color.isEmpty() ? "\n" : Colors.RESET + "\n");
+        if (!newline) {
+            write(out, "\\ No newline at end of file\n");
+        }
+        return scratch;
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,196 @@
+package utils;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.*;
+
+// per-command timings and counters. "--trace" prints them as a table when the command ends,
+// "--trace=json" as one JSON object; both go to stderr so command output stays clean.
+// every phase is also a JFR event (kiwi.Phase) and every counter is committed as kiwi.Counter
+// at the end, so a flight recording lines them up with GC and I/O.
+//
+// phases run on worker threads too, so their times add up across threads and can exceed the
+// wall-clock total
+public class Trace {
+    public static final String INDEX_LOAD = "index load";
+    public static final String WALK = "walk";
+    public static final String STAT = "stat";
+    public static final String HASH = "hash";
+    public static final String OBJECT_WRITE = "object write";
+    public static final String INDEX_FLUSH = "index flush";
+
+    public static final String FILES_WALKED = "files walked";
+    public static final String FILES_HASHED = "files hashed";
+    public static final String BYTES_READ = "bytes read";
+    public static final String OBJECTS_WRITTEN = "objects written";
+    public static final String CACHE_HITS = "cache hits";
+    public static final String COMMITS_WALKED = "commits walked";
+    public static final String BLOOM_SKIPS = "bloom skips";
+    public static final String OBJECTS_READ = "objects read";
+
+    private static final List<String> PHASE_ORDER = List.of(INDEX_LOAD, WALK, STAT, HASH, OBJECT_WRITE, INDEX_FLUSH);
+    private static final List<String> COUNTER_ORDER = List.of(FILES_WALKED, FILES_HASHED, BYTES_READ,
+            OBJECTS_WRITTEN, CACHE_HITS, COMMITS_WALKED, BLOOM_SKIPS, OBJECTS_READ);
+
+    private static final Map<String, LongAdder[]> phases = new ConcurrentHashMap<>(); // {calls, nanos}
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final EventType PHASE_EVENT = EventType.getEventType(PhaseEvent.class);
+    private static final Span OFF = new Span(null);
+    private static volatile String format; // null, "table" or "json"
+    private static final long started = System.nanoTime();
+
+    @Name("kiwi.Phase")
+    @Label("KIWI Phase")
+    @Category("KIWI")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("kiwi.Counter")
+    @Label("KIWI Counter")
+    @Category("KIWI")
+    @StackTrace(false)
+    static final class CounterEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Counter")
+        String counter;
+        @Label("Value")
+        long value;
+    }
+
+    // closed by the caller in a finally block, the body rarely has a use for the span itself
+    public static final class Span {
+        private final String phase;
+        private final long start;
+        private final PhaseEvent event;
+
+        private Span(String phase) {
+            this.phase = phase;
+            this.start = phase == null ? 0 : System.nanoTime();
+            if (phase != null && PHASE_EVENT.isEnabled()) {
+                event = new PhaseEvent();
+                event.phase = phase;
+                event.begin();
+            } else {
+                event = null;
+            }
+        }
+
+        public void close() {
+            if (phase == null) {
+                return;
+            }
+            if (format != null) {
+                LongAdder[] totals = phases.computeIfAbsent(phase, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+                totals[0].increment();
+                totals[1].add(System.nanoTime() - start);
+            }
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    // removes "--trace" / "--trace=json" from args and turns tracing on
+    public static String[] extract(String[] args) {
+        List<String> rest = new ArrayList<>(args.length);
+        for (String arg : args) {
+            if (arg.equals("--trace") || arg.equals("--trace=table")) {
+                format = "table";
+            } else if (arg.equals("--trace=json")) {
+                format = "json";
+            } else {
+                rest.add(arg);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    public static boolean enabled() {
+        return format != null;
+    }
+
+    public static Span span(String phase) {
+        if (format == null && !PHASE_EVENT.isEnabled()) {
+            return OFF;
+        }
+        return new Span(phase);
+    }
+
+    public static void count(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    // commits the counter events and prints the report if --trace was given
+    public static void finish(String command, PrintStream out) {
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            CounterEvent event = new CounterEvent();
+            if (event.isEnabled()) {
+                event.command = command;
+                event.counter = counter.getKey();
+                event.value = counter.getValue().sum();
+                event.commit();
+            }
+        }
+        if (format == null) {
+            return;
+        }
+
+        double totalMs = (System.nanoTime() - started) / 1e6;
+        List<String> phaseNames = ordered(phases.keySet(), PHASE_ORDER);
+        List<String> counterNames = ordered(counters.keySet(), COUNTER_ORDER);
+
+        if (format.equals("json")) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"command\":\"").append(command).append("\",\"totalMs\":").append(round(totalMs));
+            sb.append(",\"phases\":{");
+            for (int i = 0; i < phaseNames.size(); i++) {
+                LongAdder[] totals = phases.get(phaseNames.get(i));
+                sb.append(i == 0 ? "" : ",").append('"').append(phaseNames.get(i)).append("\":{\"calls\":")
+                        .append(totals[0].sum()).append(",\"ms\":").append(round(totals[1].sum() / 1e6)).append('}');
+            }
+            sb.append("},\"counters\":{");
+            for (int i = 0; i < counterNames.size(); i++) {
+                sb.append(i == 0 ? "" : ",").append('"').append(counterNames.get(i)).append("\":")
+                        .append(counters.get(counterNames.get(i)).sum());
+            }
+            sb.append("}}");
+            out.println(sb);
+            return;
+        }
+
+        out.println(Colors.CYAN + "[KIWI TRACE] " + command + " took " + round(totalMs) + " ms" + Colors.RESET);
+        out.println(String.format("  %-16s %10s %12s", "phase", "calls", "ms"));
+        for (String phase : phaseNames) {
+            LongAdder[] totals = phases.get(phase);
+            out.println(String.format("  %-16s %10d %12.2f", phase, totals[0].sum(), totals[1].sum() / 1e6));
+        }
+        out.println(String.format("  %-16s %23s", "counter", "value"));
+        for (String counter : counterNames) {
+            out.println(String.format("  %-16s %23d", counter, counters.get(counter).sum()));
+        }
+    }
+
+    // known names in their fixed order, anything else after them alphabetically
+    private static List<String> ordered(Set<String> names, List<String> order) {
+        List<String> out = new ArrayList<>();
+        for (String name : order) {
+            if (names.contains(name)) {
+                out.add(name);
+            }
+        }
+        TreeSet<String> rest = new TreeSet<>(names);
+        rest.removeAll(order);
+        out.addAll(rest);
+        return out;
+    }
+
+    private static double round(double ms) {
+        return Math.round(ms * 100) / 100.0;
+    }
+}
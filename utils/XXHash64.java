@@ -0,0 +1,120 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// XXH64, fed incrementally like a MessageDigest. Not collision resistant, only used to tell
+// whether a file whose stat data changed still has the content it was staged with.
+public final class XXHash64 {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total;
+    private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    public XXHash64() {
+        reset();
+    }
+
+    public void reset() {
+        v1 = P1 + P2;
+        v2 = P2;
+        v3 = 0;
+        v4 = -P1;
+        total = 0;
+        pending.clear();
+    }
+
+    public static long hash(byte[] data, int offset, int length) {
+        XXHash64 hash = new XXHash64();
+        hash.update(ByteBuffer.wrap(data, offset, length));
+        return hash.digest();
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    // consumes the buffer's remaining bytes, like MessageDigest.update(ByteBuffer)
+    public void update(ByteBuffer data) {
+        ByteBuffer in = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(data.limit());
+        total += in.remaining();
+
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && in.hasRemaining()) {
+                pending.put(in.get());
+            }
+            if (pending.hasRemaining()) {
+                return;
+            }
+            pending.flip();
+            stripe(pending);
+            pending.clear();
+        }
+        while (in.remaining() >= 32) {
+            stripe(in);
+        }
+        pending.put(in);
+    }
+
+    private void stripe(ByteBuffer in) {
+        v1 = round(v1, in.getLong());
+        v2 = round(v2, in.getLong());
+        v3 = round(v3, in.getLong());
+        v4 = round(v4, in.getLong());
+    }
+
+    public long digest() {
+        long h;
+        if (total >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = P5;
+        }
+        h += total;
+
+        ByteBuffer rest = pending.duplicate().flip().order(ByteOrder.LITTLE_ENDIAN);
+        while (rest.remaining() >= 8) {
+            h ^= round(0, rest.getLong());
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (rest.remaining() >= 4) {
+            h ^= (rest.getInt() & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+        }
+        while (rest.hasRemaining()) {
+            h ^= (rest.get() & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long h, long v) {
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+}